@@ -0,0 +1,134 @@
+package com.satori.android_demo;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Printer;
+
+import java.util.Locale;
+
+/**
+ * Synthetic load for {@link MainActivity}, standing in for the service. Only in debug builds,
+ * release builds get a no-op of the same name. The JVM counterpart is
+ * {@code MainActivityBenchmarkTest}, which feeds the same {@link UiLoad}.
+ * <p>
+ * Start with {@code adb shell am start -n com.satori.android_demo/.MainActivity --ez ui_benchmark true}.
+ * Chat messages, roster deltas and user counts are fed to the activity's event handler at each
+ * of {@link UiLoad#RATES} for {@link #STAGE_MS}. Events go through a handler of the benchmark
+ * that times the activity's handler around each of them. Per stage it logs the time the handler
+ * spends per event and how busy the main thread is, which also covers attaching the lines
+ * rendered in the background. The main looper's message logging is used to time every message
+ * it dispatches; the time spent generating the load is left out.
+ */
+class UiBenchmark implements Printer {
+    static final String EXTRA = "ui_benchmark";
+    private static final String TAG = "UiBenchmark";
+    private static final int STAGE_MS = 10000;
+    private static final int TICK_MS = 10;
+
+    private final Handler mTarget;
+    private final Handler mHandler = new Handler();
+    // Hands the events to the activity, timing each of them
+    private final Handler mDispatcher = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            long start = System.nanoTime();
+            mTarget.dispatchMessage(msg);
+            long nanos = System.nanoTime() - start;
+            mEvents++;
+            mHandlerNanos += nanos;
+            mMaxHandlerNanos = Math.max(mMaxHandlerNanos, nanos);
+        }
+    };
+    private final UiLoad mLoad = new UiLoad();
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+    private int mStage = -1;
+    private long mStageStart;
+    private int mSent;
+    // Measurements of the current stage
+    private int mEvents;
+    private long mHandlerNanos;
+    private long mMaxHandlerNanos;
+    private long mBusyNanos;
+    private long mDispatchStart;
+    // Spent in our own ticks, not part of the load
+    private long mOwnNanos;
+
+    UiBenchmark(Handler target) {
+        this.mTarget = target;
+    }
+
+    void start() {
+        Looper.getMainLooper().setMessageLogging(this);
+        mDispatcher.sendMessage(mLoad.rosterSnapshot());
+        nextStage();
+    }
+
+    void stop() {
+        mHandler.removeCallbacks(mTick);
+        mDispatcher.removeCallbacksAndMessages(null);
+        Looper.getMainLooper().setMessageLogging(null);
+    }
+
+    // Main looper logging: ">>>>> Dispatching ..." before and "<<<<< Finished ..." after a message
+    @Override
+    public void println(String x) {
+        if (x.startsWith(">")) {
+            mDispatchStart = System.nanoTime();
+        } else if (0 != mDispatchStart) {
+            mBusyNanos += System.nanoTime() - mDispatchStart;
+            mDispatchStart = 0;
+        }
+    }
+
+    private void nextStage() {
+        if (0 <= mStage) {
+            report();
+        }
+        mStage++;
+        if (UiLoad.RATES.length <= mStage) {
+            Log.i(TAG, "Done");
+            stop();
+            return;
+        }
+        // Each stage starts with an empty history
+        mDispatcher.sendMessage(mLoad.enterHive("benchmark" + UiLoad.RATES[mStage]));
+        mStageStart = SystemClock.uptimeMillis();
+        mSent = 0;
+        mEvents = 0;
+        mHandlerNanos = 0;
+        mMaxHandlerNanos = 0;
+        mBusyNanos = 0;
+        mOwnNanos = 0;
+        mHandler.postDelayed(mTick, TICK_MS);
+    }
+
+    // Sends the events due since the stage started, evenly paced at the stage rate
+    private void tick() {
+        long start = System.nanoTime();
+        long elapsed = SystemClock.uptimeMillis() - mStageStart;
+        if (STAGE_MS <= elapsed) {
+            nextStage();
+            return;
+        }
+        long due = elapsed * UiLoad.RATES[mStage] / 1000;
+        for (; mSent < due; mSent++) {
+            mDispatcher.sendMessage(mLoad.next());
+        }
+        mHandler.postDelayed(mTick, TICK_MS);
+        mOwnNanos += System.nanoTime() - start;
+    }
+
+    private void report() {
+        Log.i(TAG, String.format(Locale.US, "%4d events/s: %d events, handler %.3f ms/event (max %.2f ms), main thread busy %.0f%%",
+                UiLoad.RATES[mStage], mEvents, 0 < mEvents ? mHandlerNanos / 1e6 / mEvents : 0.0, mMaxHandlerNanos / 1e6,
+                (mBusyNanos - mOwnNanos) / 1e4 / STAGE_MS));
+    }
+}
@@ -0,0 +1,79 @@
+package com.satori.android_demo;
+
+import android.os.Bundle;
+import android.os.Message;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Synthetic service events for the UI benchmarks: 80% chat messages, 15% roster deltas (a user
+ * joins, the oldest one leaves) and 5% user counts. The sequence comes from a fixed seed, so
+ * every run sees the same load.
+ */
+class UiLoad {
+    static final int[] RATES = {10, 30, 100, 300, 1000};
+    private static final int USERS = 20;
+    private static final String[] WORDS = {"buzz", "honey", "hive", "queen", "pollen", "flower", "nectar", "sting"};
+
+    private final Random mRandom = new Random(1);
+    private long mRosterVersion;
+    private int mNextUser = USERS;
+
+    /**
+     * The roster the deltas build on, sent first.
+     */
+    Message rosterSnapshot() {
+        ArrayList<String> users = new ArrayList<String>();
+        for (int i = mNextUser - USERS; i < mNextUser; i++) {
+            users.add("bee" + i);
+        }
+        Bundle b = new Bundle();
+        b.putLong("version", mRosterVersion);
+        b.putStringArrayList("users", users);
+        return obtain(SatoriService.EVENT_ROSTER_SNAPSHOT, b);
+    }
+
+    /**
+     * Switches the activity to a new hive, which starts an empty history.
+     */
+    Message enterHive(String tag) {
+        Bundle b = new Bundle();
+        b.putString("tag", tag);
+        return obtain(SatoriService.EVENT_SUBSCRIBED, b);
+    }
+
+    Message next() {
+        int kind = mRandom.nextInt(100);
+        Bundle b = new Bundle();
+        if (kind < 80) {
+            StringBuilder text = new StringBuilder();
+            for (int i = mRandom.nextInt(12); i >= 0; i--) {
+                text.append(WORDS[mRandom.nextInt(WORDS.length)]).append(' ');
+            }
+            b.putString("nick", "bee" + (mNextUser - 1 - mRandom.nextInt(USERS)));
+            b.putString("text", text.toString());
+            return obtain(SatoriService.EVENT_RECEIVE_CHAT_MESSAGE, b);
+        } else if (kind < 95) {
+            ArrayList<String> added = new ArrayList<String>();
+            added.add("bee" + mNextUser);
+            ArrayList<String> removed = new ArrayList<String>();
+            removed.add("bee" + (mNextUser - USERS));
+            mNextUser++;
+            b.putLong("from_version", mRosterVersion);
+            b.putLong("version", ++mRosterVersion);
+            b.putStringArrayList("added", added);
+            b.putStringArrayList("removed", removed);
+            return obtain(SatoriService.EVENT_ROSTER_DELTA, b);
+        } else {
+            b.putInt("count", USERS);
+            return obtain(SatoriService.EVENT_RECEIVE_USER_COUNT, b);
+        }
+    }
+
+    private static Message obtain(int what, Bundle data) {
+        Message msg = Message.obtain(null, what);
+        msg.setData(data);
+        return msg;
+    }
+}
@@ -0,0 +1,191 @@
+package com.satori.android_demo;
+
+import android.util.Log;
+
+import com.satori.rtm.model.AnyJson;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes and filters the messages of subscription data, in order.
+ * <p>
+ * Live traffic arrives a few messages at a time and is decoded inline on the calling (SDK)
+ * thread. The history delivered after subscribing with an age or position, or after a reconnect,
+ * can be hundreds of messages at once; such batches are split into consecutive chunks decoded
+ * by a small pool while the caller decodes the first chunk, then joined back in the original
+ * order. ForkJoinPool is not available on all supported API levels, a fixed pool does the same
+ * for one level of splitting. Idle pool threads exit after a while, and under a memory limit
+ * fewer of them (possibly none) are used. If the caller is interrupted, or a chunk fails in the
+ * pool, the chunks not yet joined are decoded inline, so a batch is never returned partially.
+ */
+class BatchDecoder implements MemoryBudget.Consumer {
+    private static final String TAG = "BatchDecoder";
+    // Below this the hand-off costs more than it saves
+    private static final int PARALLEL_THRESHOLD = 64;
+    private static final int MIN_CHUNK_SIZE = 32;
+    private static final int IDLE_THREAD_MS = 30000;
+    // Estimated memory of a busy decoder thread: its stack and the messages of a chunk
+    private static final int THREAD_BYTES = 256 * 1024;
+
+    /**
+     * Selects the decoded messages to keep. Called from several threads at once, and possibly
+     * twice for a message when a chunk is taken back from the pool.
+     */
+    interface Filter<T> {
+        boolean accept(T message);
+    }
+
+    private final ThreadPoolExecutor mPool;
+    private final int mThreads;
+    private volatile int mMaxThreads;
+
+    BatchDecoder(int threads) {
+        this.mThreads = threads;
+        this.mMaxThreads = threads;
+        this.mPool = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "batch-decoder-" + mCount++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.mPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a decoder using the spare cores, at least one thread.
+     */
+    static BatchDecoder create() {
+        return new BatchDecoder(Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1)));
+    }
+
+    void shutdown() {
+        mPool.shutdown();
+    }
+
+    @Override
+    public long bytes() {
+        return (long) mPool.getPoolSize() * THREAD_BYTES;
+    }
+
+    @Override
+    public void setLimit(long maxBytes) {
+        mMaxThreads = (int) Math.min(mThreads, maxBytes / THREAD_BYTES);
+    }
+
+    /**
+     * Decodes the messages as {@code type}, dropping the malformed ones and those the filter
+     * rejects. The result is in the order of the input.
+     */
+    <T> List<T> decode(Collection<AnyJson> messages, Class<T> type, ChannelStats stats, Filter<T> filter) {
+        List<AnyJson> input = messages instanceof List ? (List<AnyJson>) messages : new ArrayList<AnyJson>(messages);
+        int chunks = Math.min(mMaxThreads + 1, input.size() / MIN_CHUNK_SIZE);
+        if (input.size() < PARALLEL_THRESHOLD || chunks < 2) {
+            return decode(input, 0, input.size(), type, stats, filter);
+        }
+
+        int chunkSize = (input.size() + chunks - 1) / chunks;
+        List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>(chunks - 1);
+        try {
+            for (int from = chunkSize; from < input.size(); from += chunkSize) {
+                futures.add(mPool.submit(new Chunk<T>(input, from, Math.min(from + chunkSize, input.size()), type, stats, filter)));
+            }
+        } catch (RuntimeException ex) {
+            // Shut down, finish on this thread
+            return decode(input, 0, input.size(), type, stats, filter);
+        }
+        List<T> result = decode(input, 0, chunkSize, type, stats, filter);
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            int from = chunkSize * (i + 1);
+            int to = Math.min(from + chunkSize, input.size());
+            Future<List<T>> future = futures.get(i);
+            if (!interrupted) {
+                try {
+                    result.addAll(future.get());
+                    continue;
+                } catch (InterruptedException ex) {
+                    // Stop waiting, the chunks left are decoded here
+                    interrupted = true;
+                    Log.w(TAG, "Interrupted while decoding, finishing " + (input.size() - from) + " message(s) inline");
+                } catch (ExecutionException ex) {
+                    Log.e(TAG, "Failed to decode " + (to - from) + " message(s) in the pool, retrying inline", ex);
+                }
+            }
+            future.cancel(false);
+            result.addAll(decode(input, from, to, type, stats, filter));
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    private static <T> List<T> decode(List<AnyJson> input, int from, int to, Class<T> type, ChannelStats stats, Filter<T> filter) {
+        List<T> result = new ArrayList<T>(to - from);
+        for (int i = from; i < to; i++) {
+            AnyJson json = input.get(i);
+            long start = System.nanoTime();
+            try {
+                T message = json.convertToType(type);
+                stats.onReceived(sizeOf(message), System.nanoTime() - start);
+                if (filter.accept(message)) {
+                    result.add(message);
+                }
+            } catch (Exception ex) {
+                stats.onMalformed(System.nanoTime() - start);
+                Log.e(TAG, "Received malformed message: " + json, ex);
+            }
+        }
+        return result;
+    }
+
+    private static int sizeOf(Object message) {
+        if (message instanceof ChatMessage) {
+            return ChannelStats.sizeOf((ChatMessage) message);
+        }
+        if (message instanceof SatoriService.ChatPresence) {
+            return ChannelStats.sizeOf((SatoriService.ChatPresence) message);
+        }
+        if (message instanceof CountMessage) {
+            return ChannelStats.sizeOf((CountMessage) message);
+        }
+        return 0;
+    }
+
+    private static class Chunk<T> implements Callable<List<T>> {
+        private final List<AnyJson> mInput;
+        private final int mFrom;
+        private final int mTo;
+        private final Class<T> mType;
+        private final ChannelStats mStats;
+        private final Filter<T> mFilter;
+
+        Chunk(List<AnyJson> input, int from, int to, Class<T> type, ChannelStats stats, Filter<T> filter) {
+            this.mInput = input;
+            this.mFrom = from;
+            this.mTo = to;
+            this.mType = type;
+            this.mStats = stats;
+            this.mFilter = filter;
+        }
+
+        @Override
+        public List<T> call() {
+            return decode(mInput, mFrom, mTo, mType, mStats, mFilter);
+        }
+    }
+}
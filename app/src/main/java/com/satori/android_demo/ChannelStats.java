@@ -0,0 +1,78 @@
+package com.satori.android_demo;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic and decoding counters of one channel or subscription.
+ * <p>
+ * Counters are updated from the SDK and timer threads without locking. Payload sizes are the
+ * approximate JSON sizes computed from the decoded fields (the SDK does not expose the raw
+ * frames), which is good enough to attribute bandwidth between channels.
+ */
+class ChannelStats {
+    // Size of the JSON keys and punctuation of each message type, plus typical number lengths
+    private static final int CHAT_MESSAGE_OVERHEAD = 90;
+    private static final int PRESENCE_OVERHEAD = 28;
+    private static final int COUNT_OVERHEAD = 12;
+
+    final String name;
+    final AtomicLong messagesIn = new AtomicLong();
+    final AtomicLong messagesOut = new AtomicLong();
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final AtomicLong decodeNanos = new AtomicLong();
+    final AtomicLong malformed = new AtomicLong();
+    final AtomicLong subscribes = new AtomicLong();
+
+    ChannelStats(String name) {
+        this.name = name;
+    }
+
+    void onReceived(int bytes, long decodeNanos) {
+        this.messagesIn.incrementAndGet();
+        this.bytesIn.addAndGet(bytes);
+        this.decodeNanos.addAndGet(decodeNanos);
+    }
+
+    void onMalformed(long decodeNanos) {
+        this.malformed.incrementAndGet();
+        this.decodeNanos.addAndGet(decodeNanos);
+    }
+
+    void onSent(int bytes) {
+        this.messagesOut.incrementAndGet();
+        this.bytesOut.addAndGet(bytes);
+    }
+
+    void onSubscribe() {
+        this.subscribes.incrementAndGet();
+    }
+
+    static void printHeader(PrintWriter writer) {
+        writer.println("channel msgs_in msgs_out bytes_in bytes_out decode_ms malformed subscribes");
+    }
+
+    void print(PrintWriter writer) {
+        writer.printf(Locale.US, "%s %d %d %d %d %.1f %d %d%n", name, messagesIn.get(), messagesOut.get(),
+                bytesIn.get(), bytesOut.get(), decodeNanos.get() / 1e6, malformed.get(), subscribes.get());
+    }
+
+    static int sizeOf(ChatMessage message) {
+        return CHAT_MESSAGE_OVERHEAD + length(message.id) + length(message.user) + length(message.text)
+                + length(message.tag);
+    }
+
+    static int sizeOf(SatoriService.ChatPresence presence) {
+        return PRESENCE_OVERHEAD + length(presence.user);
+    }
+
+    static int sizeOf(CountMessage message) {
+        return COUNT_OVERHEAD;
+    }
+
+    private static int length(String value) {
+        return null != value ? value.length() : 0;
+    }
+}
@@ -0,0 +1,336 @@
+package com.satori.android_demo;
+
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Bundle;
+import android.support.v4.view.ViewCompat;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.support.v4.widget.ExploreByTouchHelper;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.view.HapticFeedbackConstants;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.accessibility.AccessibilityEvent;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chat history made of independently laid out lines, newest on top.
+ * <p>
+ * Lines normally arrive with a {@link Layout} already computed by {@link ChatRenderer} on a
+ * background thread, so adding a line only shifts the content height; nothing is re-parsed or
+ * re-measured. Lines are laid out here only if the view width changed since they were rendered.
+ * The history keeps the newest {@value #MAX_LINES} lines.
+ * <p>
+ * Each line is exposed to accessibility services as a virtual view with its text, and a long
+ * press (or the accessibility long-click action) copies the line to the clipboard.
+ */
+public class ChatHistoryView extends View {
+    private static final int MAX_LINES = 500;
+
+    private final TextPaint mPaint;
+    private final List<Line> mLines = new ArrayList<Line>();
+    private final Rect mClip = new Rect();
+    private final LineAccessibility mAccessibility;
+    private int mContentHeight;
+    // Where the last touch went down, to find the line a long press is on
+    private float mTouchY;
+
+    public ChatHistoryView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        // Look like the TextView this view replaces
+        TextView probe = new TextView(context);
+        mPaint = new TextPaint(probe.getPaint());
+        mPaint.setColor(probe.getCurrentTextColor());
+        mAccessibility = new LineAccessibility();
+        ViewCompat.setAccessibilityDelegate(this, mAccessibility);
+        setLongClickable(true);
+    }
+
+    /**
+     * Returns a copy of the paint lines must be laid out with.
+     */
+    TextPaint copyPaint() {
+        return new TextPaint(mPaint);
+    }
+
+    /**
+     * Returns the width lines must be laid out for, or 0 if not known yet.
+     */
+    int getTextWidth() {
+        return Math.max(0, getWidth() - getPaddingLeft() - getPaddingRight());
+    }
+
+    void prepend(Line line) {
+        mLines.add(0, line);
+        if (null != line.layout && line.layout.getWidth() == getTextWidth()) {
+            mContentHeight += line.layout.getHeight();
+        } else {
+            relayout();
+        }
+        removeOldest(MAX_LINES);
+        onLinesChanged();
+    }
+
+    /**
+     * Replaces a line in place, e.g. to show the new state of a sent message. Returns false if
+     * the line is no longer in the history.
+     */
+    boolean replace(Line line, Line replacement) {
+        int index = mLines.indexOf(line);
+        if (index < 0) {
+            return false;
+        }
+        mLines.set(index, replacement);
+        if (null != line.layout && null != replacement.layout && replacement.layout.getWidth() == getTextWidth()) {
+            mContentHeight += replacement.layout.getHeight() - line.layout.getHeight();
+        } else {
+            relayout();
+        }
+        onLinesChanged();
+        return true;
+    }
+
+    /**
+     * Drops all but the newest {@code maxLines} lines.
+     */
+    void trim(int maxLines) {
+        removeOldest(maxLines);
+        onLinesChanged();
+    }
+
+    private void removeOldest(int maxLines) {
+        while (maxLines < mLines.size()) {
+            Line line = mLines.remove(mLines.size() - 1);
+            if (null != line.layout) {
+                mContentHeight -= line.layout.getHeight();
+            }
+        }
+    }
+
+    /**
+     * Replaces the history with the given lines (newest first), laid out in one pass.
+     */
+    void restore(List<CharSequence> texts) {
+        mLines.clear();
+        for (CharSequence text : texts) {
+            mLines.add(new Line(text, null));
+        }
+        relayout();
+        onLinesChanged();
+    }
+
+    void clear() {
+        mLines.clear();
+        mContentHeight = 0;
+        onLinesChanged();
+    }
+
+    List<Line> getLines() {
+        return mLines;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (w != oldw) {
+            relayout();
+            requestLayout();
+            mAccessibility.invalidateRoot();
+        }
+    }
+
+    @Override
+    protected boolean dispatchHoverEvent(MotionEvent event) {
+        return mAccessibility.dispatchHoverEvent(event) || super.dispatchHoverEvent(event);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (MotionEvent.ACTION_DOWN == event.getActionMasked()) {
+            mTouchY = event.getY();
+        }
+        return super.onTouchEvent(event);
+    }
+
+    @Override
+    public boolean performLongClick() {
+        if (super.performLongClick()) {
+            return true;
+        }
+        int index = lineAt(mTouchY);
+        if (index < 0) {
+            return false;
+        }
+        copy(index);
+        return true;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        setMeasuredDimension(width, mContentHeight + getPaddingTop() + getPaddingBottom());
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        canvas.getClipBounds(mClip);
+        int top = getPaddingTop();
+        canvas.save();
+        canvas.translate(getPaddingLeft(), top);
+        for (Line line : mLines) {
+            if (null == line.layout) {
+                continue;
+            }
+            int height = line.layout.getHeight();
+            // Only the lines scrolled into view are drawn
+            if (top + height >= mClip.top && top <= mClip.bottom) {
+                line.layout.draw(canvas);
+            }
+            canvas.translate(0, height);
+            top += height;
+        }
+        canvas.restore();
+    }
+
+    private void onLinesChanged() {
+        requestLayout();
+        invalidate();
+        mAccessibility.invalidateRoot();
+    }
+
+    // Index of the line at the given height, or -1
+    private int lineAt(float y) {
+        int top = getPaddingTop();
+        for (int i = 0; i < mLines.size(); i++) {
+            Layout layout = mLines.get(i).layout;
+            if (null == layout) {
+                continue;
+            }
+            if (y < top + layout.getHeight()) {
+                return y < top ? -1 : i;
+            }
+            top += layout.getHeight();
+        }
+        return -1;
+    }
+
+    // Sets the bounds of the line, returns false if it is not laid out
+    private boolean getLineBounds(int index, Rect bounds) {
+        int top = getPaddingTop();
+        for (int i = 0; i < index; i++) {
+            Layout layout = mLines.get(i).layout;
+            if (null != layout) {
+                top += layout.getHeight();
+            }
+        }
+        Layout layout = mLines.get(index).layout;
+        if (null == layout) {
+            return false;
+        }
+        bounds.set(getPaddingLeft(), top, getPaddingLeft() + layout.getWidth(), top + layout.getHeight());
+        return true;
+    }
+
+    private void copy(int index) {
+        ClipboardManager clipboard = (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+        clipboard.setPrimaryClip(ClipData.newPlainText("chat", mLines.get(index).text.toString()));
+        performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+        Toast.makeText(getContext(), "Message copied", Toast.LENGTH_SHORT).show();
+    }
+
+    private void relayout() {
+        int width = getTextWidth();
+        mContentHeight = 0;
+        if (0 == width) {
+            return;
+        }
+        for (Line line : mLines) {
+            if (null == line.layout || line.layout.getWidth() != width) {
+                line.layout = layout(line.text, mPaint, width);
+            }
+            mContentHeight += line.layout.getHeight();
+        }
+    }
+
+    static Layout layout(CharSequence text, TextPaint paint, int width) {
+        return new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, 1, 0, false);
+    }
+
+    /**
+     * Exposes the lines as virtual views, numbered by their index in the history.
+     */
+    private class LineAccessibility extends ExploreByTouchHelper {
+        private final Rect mBounds = new Rect();
+
+        LineAccessibility() {
+            super(ChatHistoryView.this);
+        }
+
+        @Override
+        protected int getVirtualViewAt(float x, float y) {
+            int index = lineAt(y);
+            return 0 <= index ? index : INVALID_ID;
+        }
+
+        @Override
+        protected void getVisibleVirtualViews(List<Integer> ids) {
+            for (int i = 0; i < mLines.size(); i++) {
+                if (null != mLines.get(i).layout) {
+                    ids.add(i);
+                }
+            }
+        }
+
+        @Override
+        protected void onPopulateEventForVirtualView(int id, AccessibilityEvent event) {
+            // Ids may be stale after lines were added or removed
+            event.getText().add(id < mLines.size() ? mLines.get(id).text : "");
+        }
+
+        @Override
+        protected void onPopulateNodeForVirtualView(int id, AccessibilityNodeInfoCompat node) {
+            if (id >= mLines.size() || !getLineBounds(id, mBounds)) {
+                node.setText("");
+                node.setBoundsInParent(new Rect());
+                return;
+            }
+            node.setClassName(TextView.class.getName());
+            node.setText(mLines.get(id).text);
+            node.setBoundsInParent(mBounds);
+            node.setLongClickable(true);
+            node.addAction(AccessibilityNodeInfoCompat.ACTION_LONG_CLICK);
+        }
+
+        @Override
+        protected boolean onPerformActionForVirtualView(int id, int action, Bundle arguments) {
+            if (AccessibilityNodeInfoCompat.ACTION_LONG_CLICK == action && id < mLines.size()) {
+                copy(id);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * One line of the history: the styled text and its layout (if already computed).
+     */
+    static class Line {
+        final CharSequence text;
+        Layout layout;
+
+        Line(CharSequence text, Layout layout) {
+            this.text = text;
+            this.layout = layout;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.satori.android_demo;
+
+import android.util.Log;
+
+import com.satori.rtm.model.AnyJson;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Handling of every received chat and presence message, from the SDK's JSON to what the UI is
+ * handed.
+ * <p>
+ * A chat message is decoded, dropped if it repeats one already received on its subscription
+ * (outbox re-sends, replays), added to the search index and the hive cache and, if it belongs to
+ * the current hive, counted as a heartbeat of its sender. It is then handed to the listener
+ * while an activity is bound, or kept in a bounded backlog until one binds. A presence message
+ * extends its sender's deadline in the roster.
+ * <p>
+ * Plain Java, so the allocations of this hot path are checked on the JVM.
+ */
+class ChatInbound implements MemoryBudget.Consumer {
+    private static final String TAG = "ChatInbound";
+    // A user missing this many announced presence intervals is offline
+    static final int OFFLINE_INTERVALS = 3;
+    private static final int RECENT_MESSAGE_IDS = 512;
+    private static final int BACKLOG_SIZE = 100;
+
+    /**
+     * Learns what the UI needs to be told, on the thread of the subscription.
+     */
+    interface Listener {
+        /**
+         * A message for the bound activities. Called with this object locked, so messages are
+         * handed over in order and never overtake the backlog.
+         */
+        void onChatMessage(ChatMessage message);
+
+        void onRosterChanged();
+    }
+
+    private final BatchDecoder mDecoder;
+    private final SearchIndex mSearchIndex;
+    private final HiveCache mHiveCache;
+    private final Roster mRoster;
+    private final Listener mListener;
+    // Offline threshold of users who do not announce their interval
+    private final long mOfflineThresholdMs;
+    private volatile String mHive;
+    // No activity is bound: messages go to the backlog. Accessed with this object locked.
+    private volatile boolean mBackground = true;
+    private final ArrayDeque<ChatMessage> mBacklog = new ArrayDeque<ChatMessage>();
+    private long mBacklogBytes;
+    private long mBacklogLimit = Long.MAX_VALUE;
+    private int mUnreadCount;
+
+    ChatInbound(BatchDecoder decoder, SearchIndex searchIndex, HiveCache hiveCache, Roster roster,
+                long offlineThresholdMs, Listener listener) {
+        this.mDecoder = decoder;
+        this.mSearchIndex = searchIndex;
+        this.mHiveCache = hiveCache;
+        this.mRoster = roster;
+        this.mOfflineThresholdMs = offlineThresholdMs;
+        this.mListener = listener;
+    }
+
+    /**
+     * Returns a set for the ids of the recent messages of one subscription.
+     */
+    static Set<String> newRecentIds() {
+        return Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return RECENT_MESSAGE_IDS < size();
+            }
+        });
+    }
+
+    /**
+     * Sets the hive the UI shows. Messages of other hives (late data of the previous one) are
+     * indexed and cached, but not shown.
+     */
+    void setHive(String tag) {
+        mHive = tag;
+    }
+
+    /**
+     * Switches between handing messages to the listener and keeping them in the backlog. Lock
+     * this object to take the backlog in the same step.
+     */
+    synchronized void setBackground(boolean background) {
+        mBackground = background;
+    }
+
+    boolean isBackground() {
+        return mBackground;
+    }
+
+    /**
+     * Handles the data of a chat subscription, whose recent message ids are in
+     * {@code recentIds}.
+     */
+    void onChatData(Collection<AnyJson> data, Set<String> recentIds, ChannelStats stats,
+                    BatchDecoder.Filter<ChatMessage> filter) {
+        List<ChatMessage> messages = mDecoder.decode(data, ChatMessage.class, stats, filter);
+        long now = System.currentTimeMillis();
+        for (ChatMessage msg : messages) {
+            if (null != msg.id && !recentIds.add(msg.id)) {
+                continue;
+            }
+            onChatMessage(msg, now);
+        }
+    }
+
+    /**
+     * Handles the data of the presence channel.
+     */
+    void onPresenceData(Collection<AnyJson> data, ChannelStats stats) {
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        for (AnyJson json : data) {
+            long start = System.nanoTime();
+            SatoriService.ChatPresence presence;
+            try {
+                presence = json.convertToType(SatoriService.ChatPresence.class);
+                stats.onReceived(ChannelStats.sizeOf(presence), System.nanoTime() - start);
+            } catch (Exception ex) {
+                stats.onMalformed(System.nanoTime() - start);
+                Log.e(TAG, "Received malformed presence: " + json, ex);
+                continue;
+            }
+            long threshold = 0 < presence.interval ? presence.interval * OFFLINE_INTERVALS : mOfflineThresholdMs;
+            changed |= mRoster.touch(presence.user, now + threshold);
+        }
+        if (changed) {
+            mListener.onRosterChanged();
+        }
+    }
+
+    private void onChatMessage(ChatMessage msg, long now) {
+        mSearchIndex.add(msg);
+        mHiveCache.add(msg);
+        // Late data of the previous hive, the UI may already show the new one
+        String hive = mHive;
+        if (null != hive && !hive.equals(msg.tag)) {
+            return;
+        }
+        if (null != msg.user && mRoster.touch(msg.user, now + mOfflineThresholdMs)) {
+            mListener.onRosterChanged();
+        }
+        // The mode is checked under the lock an activity binding holds while it flips the mode and
+        // takes the backlog, so a message is either in that backlog or handed over after it
+        synchronized (this) {
+            if (mBackground) {
+                mBacklog.addLast(msg);
+                mBacklogBytes += HiveCache.sizeOf(msg);
+                trimBacklog();
+                mUnreadCount++;
+                return;
+            }
+            mListener.onChatMessage(msg);
+        }
+    }
+
+    /**
+     * Moves the backlog, oldest first, to {@code messages} and returns the number of messages
+     * received meanwhile, including those the backlog could not keep.
+     */
+    synchronized int takeBacklog(List<ChatMessage> messages) {
+        messages.addAll(mBacklog);
+        int unread = mUnreadCount;
+        mBacklog.clear();
+        mBacklogBytes = 0;
+        mUnreadCount = 0;
+        return unread;
+    }
+
+    @Override
+    public synchronized long bytes() {
+        return mBacklogBytes;
+    }
+
+    @Override
+    public synchronized void setLimit(long maxBytes) {
+        mBacklogLimit = maxBytes;
+        trimBacklog();
+    }
+
+    // Call with this object locked
+    private void trimBacklog() {
+        while (!mBacklog.isEmpty() && (BACKLOG_SIZE < mBacklog.size() || mBacklogLimit < mBacklogBytes)) {
+            mBacklogBytes -= HiveCache.sizeOf(mBacklog.removeFirst());
+        }
+    }
+}
@@ -7,6 +7,11 @@ import android.location.Location;
  */
 
 public class ChatMessage {
+    // Longest user, text or tag kept; the logs store fields as modified UTF-8 of up to 64 KB
+    static final int MAX_FIELD_LENGTH = 4096;
+
+    // Client-generated id, lets receivers drop the duplicates of a re-sent message
+    String id;
     String user;
     String text;
     double lat;
@@ -30,4 +35,18 @@ public class ChatMessage {
         }
         this.tag = tag;
     }
+
+    /**
+     * Cuts the value to {@link #MAX_FIELD_LENGTH} characters, without splitting a surrogate pair.
+     */
+    static String clip(String value) {
+        if (null == value || value.length() <= MAX_FIELD_LENGTH) {
+            return value;
+        }
+        int end = MAX_FIELD_LENGTH;
+        if (Character.isHighSurrogate(value.charAt(end - 1))) {
+            end--;
+        }
+        return value.substring(0, end);
+    }
 }
\ No newline at end of file
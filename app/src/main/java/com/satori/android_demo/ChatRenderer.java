@@ -0,0 +1,162 @@
+package com.satori.android_demo;
+
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.util.LruCache;
+
+/**
+ * Builds history lines off the main thread.
+ * <p>
+ * Styling is applied as spans directly (no HTML round trip) and the text layout is computed for
+ * the current width of the history view, so the main thread only has to attach the result.
+ * Recently rendered lines are cached, which makes repeated lines (like a swarm of bees) free.
+ */
+class ChatRenderer {
+    private static final int CACHE_SIZE = 64;
+    private static final int INFO_COLOR = Color.parseColor("#a8a8a8");
+    private static final int FAILED_COLOR = Color.parseColor("#cc0000");
+    // States of a message sent by this user
+    static final int SENT_PENDING = 0;
+    static final int SENT_CONFIRMED = 1;
+    static final int SENT_FAILED = 2;
+    // Given up on by the outbox, final
+    static final int SENT_DROPPED = 3;
+
+    /**
+     * Receives rendered lines on the main thread, in the order they were requested.
+     */
+    interface Callback {
+        void onRendered(ChatHistoryView.Line line);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+    private final ChatHistoryView mView;
+    // Accessed on the renderer thread only
+    private final LruCache<String, Layout> mCache = new LruCache<String, Layout>(CACHE_SIZE);
+    private TextPaint mPaint;
+
+    ChatRenderer(ChatHistoryView view, Handler mainHandler) {
+        this.mView = view;
+        this.mMainHandler = mainHandler;
+        this.mThread = new HandlerThread("chat-renderer");
+        this.mThread.start();
+        this.mHandler = new Handler(mThread.getLooper());
+    }
+
+    void quit() {
+        mThread.quit();
+    }
+
+    void trimMemory() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCache.evictAll();
+            }
+        });
+    }
+
+    void renderMessage(final String nick, final String text, Callback callback) {
+        render("m" + nick + '\u0000' + text, new Builder() {
+            @Override
+            public CharSequence build() {
+                SpannableStringBuilder line = new SpannableStringBuilder();
+                line.append('<').append(nick).append("> ");
+                line.setSpan(new StyleSpan(Typeface.BOLD), 0, line.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                line.append(text);
+                return line;
+            }
+        }, callback);
+    }
+
+    /**
+     * Renders a message of this user: greyed out until confirmed, marked if not sent.
+     */
+    void renderSentMessage(final String nick, final String text, final int state, Callback callback) {
+        if (SENT_CONFIRMED == state) {
+            renderMessage(nick, text, callback);
+            return;
+        }
+        render("s" + state + nick + '\u0000' + text, new Builder() {
+            @Override
+            public CharSequence build() {
+                SpannableStringBuilder line = new SpannableStringBuilder();
+                line.append('<').append(nick).append("> ");
+                line.setSpan(new StyleSpan(Typeface.BOLD), 0, line.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                line.append(text);
+                line.setSpan(new ForegroundColorSpan(INFO_COLOR), 0, line.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                if (SENT_FAILED == state || SENT_DROPPED == state) {
+                    int start = line.length();
+                    line.append(SENT_FAILED == state ? " (not sent yet)" : " (not sent)");
+                    line.setSpan(new ForegroundColorSpan(FAILED_COLOR), start, line.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    line.setSpan(new StyleSpan(Typeface.ITALIC), start, line.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+                return line;
+            }
+        }, callback);
+    }
+
+    void renderText(final String text, Callback callback) {
+        render("t" + text, new Builder() {
+            @Override
+            public CharSequence build() {
+                return text;
+            }
+        }, callback);
+    }
+
+    void renderInfo(final String info, Callback callback) {
+        render("i" + info, new Builder() {
+            @Override
+            public CharSequence build() {
+                SpannableStringBuilder line = new SpannableStringBuilder(info);
+                line.setSpan(new ForegroundColorSpan(INFO_COLOR), 0, line.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                line.setSpan(new StyleSpan(Typeface.ITALIC), 0, line.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                return line;
+            }
+        }, callback);
+    }
+
+    private void render(final String key, final Builder builder, final Callback callback) {
+        // Read on the main thread, the view may be resized in between but then it lays the line
+        // out again itself
+        final int width = mView.getTextWidth();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (null == mPaint) {
+                    mPaint = mView.copyPaint();
+                }
+                Layout layout = mCache.get(key);
+                if (null == layout || layout.getWidth() != width) {
+                    layout = 0 < width ? ChatHistoryView.layout(builder.build(), mPaint, width) : null;
+                    if (null != layout) {
+                        mCache.put(key, layout);
+                    }
+                }
+                CharSequence text = null != layout ? layout.getText() : builder.build();
+                final ChatHistoryView.Line line = new ChatHistoryView.Line(text, layout);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onRendered(line);
+                    }
+                });
+            }
+        });
+    }
+
+    private interface Builder {
+        CharSequence build();
+    }
+}
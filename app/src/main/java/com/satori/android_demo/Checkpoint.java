@@ -0,0 +1,137 @@
+package com.satori.android_demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the service state that lets a restarted service show the last known hive right
+ * away while it reconnects.
+ * <p>
+ * The snapshot is a small binary file: it is written to a temporary file and renamed over the
+ * old one, so a crash never leaves a half-written checkpoint behind, and it is memory-mapped
+ * when read.
+ */
+class Checkpoint {
+    private static final int MAGIC = 0x48495645; // "HIVE"
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    long savedAt;
+    SubscriptionChangeMessage subscription;
+    int userCount;
+    // Subscription id -> last stream position
+    final Map<String, String> positions = new HashMap<String, String>();
+    final List<String> roster = new ArrayList<String>();
+
+    void write(File file) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(savedAt);
+        out.writeBoolean(null != subscription);
+        if (null != subscription) {
+            writeString(out, subscription.tag);
+            out.writeDouble(subscription.lat);
+            out.writeDouble(subscription.lon);
+            out.writeDouble(subscription.radius);
+        }
+        out.writeInt(userCount);
+        out.writeInt(positions.size());
+        for (Map.Entry<String, String> entry : positions.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        out.writeInt(roster.size());
+        for (String user : roster) {
+            writeString(out, user);
+        }
+        out.flush();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            buffer.writeTo(stream);
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Returns the checkpoint stored in the file or {@code null} if there is none or it is
+     * unreadable.
+     */
+    static Checkpoint read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.savedAt = in.getLong();
+            if (0 != in.get()) {
+                SubscriptionChangeMessage subscription = new SubscriptionChangeMessage(readString(in));
+                subscription.lat = in.getDouble();
+                subscription.lon = in.getDouble();
+                subscription.radius = in.getDouble();
+                checkpoint.subscription = subscription;
+            }
+            checkpoint.userCount = in.getInt();
+            for (int i = in.getInt(); i > 0; i--) {
+                checkpoint.positions.put(readString(in), readString(in));
+            }
+            for (int i = in.getInt(); i > 0; i--) {
+                checkpoint.roster.add(readString(in));
+            }
+            return checkpoint;
+        } catch (BufferUnderflowException ex) {
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (null == value) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (in.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,47 @@
+package com.satori.android_demo;
+
+/**
+ * Circular area around the user's location.
+ * <p>
+ * RTM filters only support simple comparisons, so the server side gets the bounding box of the
+ * circle (see {@link #toFilterString()}) and messages from the corners of the box are dropped on
+ * the client with {@link #contains(double, double)}.
+ * <p>
+ * The distance check uses the equirectangular approximation with the cosine of the center
+ * latitude computed once, which is exact to well under a meter at hive-sized radii and costs a
+ * few multiplications per message (no trigonometry).
+ */
+class GeoRadius {
+    private static final double EARTH_RADIUS_M = 6371000.00;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS_M * Math.PI / 180;
+
+    private final double mLat;
+    private final double mLon;
+    private final double mRadius;
+    private final double mRadiusSquared;
+    private final double mLonScale;
+
+    GeoRadius(double lat, double lon, double radiusMeters) {
+        this.mLat = lat;
+        this.mLon = lon;
+        this.mRadius = radiusMeters;
+        this.mRadiusSquared = radiusMeters * radiusMeters;
+        this.mLonScale = Math.cos(lat * Math.PI / 180);
+    }
+
+    boolean contains(double lat, double lon) {
+        double dy = (lat - mLat) * METERS_PER_DEGREE;
+        double dx = (lon - mLon) * METERS_PER_DEGREE * mLonScale;
+        return dx * dx + dy * dy <= mRadiusSquared;
+    }
+
+    /**
+     * Returns the RTM filter condition selecting the bounding box of the circle.
+     */
+    String toFilterString() {
+        double latDelta = mRadius / METERS_PER_DEGREE;
+        double lonDelta = latDelta / mLonScale;
+        return "lat > " + Double.toString(mLat - latDelta) + " AND lat < " + Double.toString(mLat + latDelta)
+                + " AND lon > " + Double.toString(mLon - lonDelta) + " AND lon < " + Double.toString(mLon + lonDelta);
+    }
+}
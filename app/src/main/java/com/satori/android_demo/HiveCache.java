@@ -0,0 +1,157 @@
+package com.satori.android_demo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Recent messages of the hives the user visited or may visit next.
+ * <p>
+ * Entering a cached hive shows its messages right away instead of after the new subscription
+ * replays them. Each hive keeps a window of its latest messages; when the total size goes over
+ * the byte budget, the windows of the least recently entered hives are evicted first. Windows
+ * of hives loaded ahead remember when they were last reloaded.
+ * <p>
+ * All methods are thread-safe.
+ */
+class HiveCache implements MemoryBudget.Consumer {
+    // Estimated heap size of a message besides its strings
+    private static final int MESSAGE_OVERHEAD = 96;
+
+    private final int mWindowSize;
+    private long mMaxBytes;
+    // In order of use, least recently used first
+    private final LinkedHashMap<String, Window> mWindows = new LinkedHashMap<String, Window>();
+    private long mBytes;
+
+    HiveCache(int windowSize, long maxBytes) {
+        this.mWindowSize = windowSize;
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a message of the hive the user is in.
+     */
+    synchronized void add(ChatMessage message) {
+        Window window = touch(key(message.tag));
+        if (null == window) {
+            window = new Window();
+            mWindows.put(key(message.tag), window);
+        }
+        append(window, message);
+        trim(mMaxBytes);
+    }
+
+    /**
+     * Adds a message of another hive, if that hive is cached. Does not count as a use.
+     */
+    synchronized void addIfCached(ChatMessage message) {
+        Window window = mWindows.get(key(message.tag));
+        if (null != window) {
+            append(window, message);
+            trim(mMaxBytes);
+        }
+    }
+
+    /**
+     * Starts caching the hive if needed and records that its recent history is being reloaded.
+     * Does not count as a use.
+     */
+    synchronized void refresh(String tag, long now) {
+        Window window = mWindows.get(key(tag));
+        if (null == window) {
+            window = new Window();
+            mWindows.put(key(tag), window);
+        }
+        window.refreshed = now;
+    }
+
+    /**
+     * Returns true if the hive is cached and was reloaded within the last {@code maxAgeMs}.
+     */
+    synchronized boolean isFresh(String tag, long now, long maxAgeMs) {
+        Window window = mWindows.get(key(tag));
+        return null != window && now - window.refreshed < maxAgeMs;
+    }
+
+    /**
+     * Returns the cached messages of the hive, oldest first, or {@code null} if not cached.
+     */
+    synchronized List<ChatMessage> get(String tag) {
+        Window window = touch(key(tag));
+        return null != window ? new ArrayList<ChatMessage>(window.messages) : null;
+    }
+
+    @Override
+    public synchronized long bytes() {
+        return mBytes;
+    }
+
+    synchronized long limit() {
+        return mMaxBytes;
+    }
+
+    @Override
+    public synchronized void setLimit(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trim(maxBytes);
+    }
+
+    // Evicts the least recently used hives until the cache takes at most maxBytes
+    private void trim(long maxBytes) {
+        for (Iterator<Window> it = mWindows.values().iterator(); maxBytes < mBytes && it.hasNext(); ) {
+            mBytes -= it.next().bytes;
+            it.remove();
+        }
+    }
+
+    private Window touch(String key) {
+        Window window = mWindows.remove(key);
+        if (null != window) {
+            mWindows.put(key, window);
+        }
+        return window;
+    }
+
+    private void append(Window window, ChatMessage message) {
+        // Prefetched and live copies of a message may overlap
+        if (null != message.id) {
+            for (ChatMessage cached : window.messages) {
+                if (message.id.equals(cached.id)) {
+                    return;
+                }
+            }
+        }
+        if (mWindowSize <= window.messages.size()) {
+            int size = sizeOf(window.messages.removeFirst());
+            window.bytes -= size;
+            mBytes -= size;
+        }
+        int size = sizeOf(message);
+        window.messages.addLast(message);
+        window.bytes += size;
+        mBytes += size;
+    }
+
+    private static String key(String tag) {
+        return null != tag ? tag : "";
+    }
+
+    static int sizeOf(ChatMessage message) {
+        return MESSAGE_OVERHEAD + 2 * (length(message.id) + length(message.user) + length(message.text)
+                + length(message.tag));
+    }
+
+    private static int length(String value) {
+        return null != value ? value.length() : 0;
+    }
+
+    private static class Window {
+        final ArrayDeque<ChatMessage> messages = new ArrayDeque<ChatMessage>();
+        int bytes;
+        // Time of the last reload, 0 if never
+        long refreshed;
+    }
+}
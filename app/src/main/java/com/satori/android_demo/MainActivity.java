@@ -22,7 +22,6 @@ import android.support.annotation.RequiresApi;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
-import android.text.Html;
 import android.text.style.SubscriptSpan;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -44,7 +43,14 @@ import android.widget.Toast;
 import android.widget.LinearLayout;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
 
 
 /**
@@ -56,16 +62,43 @@ import java.util.Random;
  */
 public class MainActivity extends AppCompatActivity implements View.OnCreateContextMenuListener {
     private final String TAG = "MainActivity";
-    private final Messenger mIncomingMessenger = new Messenger(new IncomingHandler(this));
+    // Lines kept when the system runs low on memory
+    private static final int TRIMMED_HISTORY_LINES = 100;
+    // A sent message not acknowledged by then is shown as not sent yet (the outbox keeps trying)
+    private static final int SEND_TIMEOUT_MS = 10000;
+    private static final int MAX_SENT_MESSAGES = 100;
+    // A hive switch the service has not confirmed by then is given up
+    private static final int HIVE_SWITCH_TIMEOUT_MS = 15000;
+    private final IncomingHandler mIncomingHandler = new IncomingHandler(this);
+    private final Messenger mIncomingMessenger = new Messenger(mIncomingHandler);
     private boolean mInitialized = false;
     private Messenger mService = null;
     private boolean mIsBound;
-    private TextView mTextView;
+    private ChatHistoryView mHistoryView;
+    private ChatRenderer mRenderer;
+    // Lines rendered for an older history (before a hive switch) are dropped
+    private int mHistoryGeneration;
     private MenuItem mClientConnectivityState;
+    // The hive shown, and the one being switched to
     private String newTag = "";
+    private String mPendingHive;
     private String userName;
     private EditText msgField;
     private TextView countTxt;
+    private TextView[] mTrendingTagViews;
+    // Online users as of mRosterVersion (-1 before the first snapshot from the service)
+    private final Set<String> mRoster = new HashSet<String>();
+    private long mRosterVersion = -1;
+    // Synthetic load in place of the service, debug builds only
+    private UiBenchmark mBenchmark;
+    private final Handler mHandler = new Handler();
+    // Messages sent from here by client id, until their echo comes back from the server
+    private final Map<String, SentMessage> mSentMessages = new LinkedHashMap<String, SentMessage>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SentMessage> eldest) {
+            return MAX_SENT_MESSAGES < size();
+        }
+    };
     Location mLocation;
     LocationManager mLocationManager;
 
@@ -75,25 +108,7 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
         public void onClick(View v) {
             String text = ((TextView)v).getText().toString();
             text = text.replace("#","");
-            newTag = text;
-            mTextView.setText("Entered hive #"+newTag);;
-            SubscriptionChangeMessage subChangeMessage = new SubscriptionChangeMessage(newTag, mLocation);
-            sendSubscriptionChangeMessageToService(subChangeMessage);
-
-            final Runnable r = new Runnable() {
-                public void run() {
-                    sendMessageToService(new ChatMessage("Queen Bee", "User "+userName+" has joined.", mLocation, newTag));
-                }
-            };
-            Handler handler = new Handler();
-            handler.postDelayed(r, 1000);
-
-            if (newTag.equals("")){
-                setTitle(("Hivestr").trim());
-            }
-            else {
-                setTitle(("Hivestr #" + (newTag).toLowerCase()).trim());
-            }
+            enterHive(text);
         }
     };
 
@@ -102,7 +117,8 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
         @Override
         public void onLocationChanged(final Location location) {
             mLocation = location;
-            SubscriptionChangeMessage scm = new SubscriptionChangeMessage(newTag, mLocation);
+            // Keeps a switch in progress going
+            SubscriptionChangeMessage scm = new SubscriptionChangeMessage(null != mPendingHive ? mPendingHive : newTag, mLocation);
             sendSubscriptionChangeMessageToService(scm);
             Log.i(TAG, "Location: "+location.toString());
         }
@@ -148,21 +164,67 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
 
     @Override
     protected void onSaveInstanceState(Bundle outState) {
-        String html = "";
-        if (null != mTextView.getEditableText()) {
-            html = Html.toHtml(mTextView.getEditableText());
+        ArrayList<CharSequence> history = new ArrayList<CharSequence>();
+        for (ChatHistoryView.Line line : mHistoryView.getLines()) {
+            history.add(line.text);
         }
-        outState.putString("history", html);
+        outState.putCharSequenceArrayList("history", history);
         outState.putBoolean("initialized", mInitialized);
+        outState.putString("tag", newTag);
+        // Own messages still waiting for their echo, and where their lines are
+        ArrayList<String> sentIds = new ArrayList<String>();
+        ArrayList<String> sentNicks = new ArrayList<String>();
+        ArrayList<String> sentTexts = new ArrayList<String>();
+        ArrayList<Integer> sentStates = new ArrayList<Integer>();
+        ArrayList<Integer> sentLines = new ArrayList<Integer>();
+        for (SentMessage sent : mSentMessages.values()) {
+            if (sent.generation == mHistoryGeneration) {
+                sentIds.add(sent.id);
+                sentNicks.add(sent.nick);
+                sentTexts.add(sent.text);
+                sentStates.add(sent.state);
+                sentLines.add(null != sent.line ? mHistoryView.getLines().indexOf(sent.line) : -1);
+            }
+        }
+        outState.putStringArrayList("sent_ids", sentIds);
+        outState.putStringArrayList("sent_nicks", sentNicks);
+        outState.putStringArrayList("sent_texts", sentTexts);
+        outState.putIntegerArrayList("sent_states", sentStates);
+        outState.putIntegerArrayList("sent_lines", sentLines);
         super.onSaveInstanceState(outState);
     }
 
     @Override
     protected void onRestoreInstanceState(Bundle savedInstanceState) {
         super.onRestoreInstanceState(savedInstanceState);
-        String history = savedInstanceState.getString("history");
-        mTextView.setText(Html.fromHtml(history), TextView.BufferType.EDITABLE);
+        List<CharSequence> history = savedInstanceState.getCharSequenceArrayList("history");
+        if (null != history) {
+            mHistoryView.restore(history);
+        }
         mInitialized = savedInstanceState.getBoolean("initialized");
+        newTag = savedInstanceState.getString("tag", "");
+        List<String> sentIds = savedInstanceState.getStringArrayList("sent_ids");
+        if (null != sentIds) {
+            List<String> sentNicks = savedInstanceState.getStringArrayList("sent_nicks");
+            List<String> sentTexts = savedInstanceState.getStringArrayList("sent_texts");
+            List<Integer> sentStates = savedInstanceState.getIntegerArrayList("sent_states");
+            List<Integer> sentLines = savedInstanceState.getIntegerArrayList("sent_lines");
+            List<ChatHistoryView.Line> lines = mHistoryView.getLines();
+            for (int i = 0; i < sentIds.size(); i++) {
+                SentMessage sent = new SentMessage(sentIds.get(i), sentNicks.get(i), sentTexts.get(i), mHistoryGeneration);
+                sent.state = sentStates.get(i);
+                mSentMessages.put(sent.id, sent);
+                int index = sentLines.get(i);
+                if (0 <= index && index < lines.size()) {
+                    sent.line = lines.get(index);
+                } else {
+                    renderSentMessage(sent);
+                }
+                if (ChatRenderer.SENT_PENDING == sent.state) {
+                    scheduleSendTimeout(sent);
+                }
+            }
+        }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
@@ -186,6 +248,8 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
         tag5.setOnClickListener(tagClickListener);
         TextView tag6 = (TextView) findViewById(R.id.singlesTag);
         tag6.setOnClickListener(tagClickListener);
+        // The first (sponsored) chip is fixed, the rest show the trending hives
+        mTrendingTagViews = new TextView[]{tag2, tag3, tag5, tag4, tag6};
         //Intent intent = new Intent(this, MainActivity.class);
         //startActivity(intent);
         //finish();
@@ -197,12 +261,12 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
 
             @Override
             public void onClick(View v) {
-                ChatMessage message = new ChatMessage(userName, new String(Character.toChars(0x1F41D)), mLocation, newTag);
-                sendMessageToService(message);
+                sendChatMessage(new String(Character.toChars(0x1F41D)));
             }
         });
         //beeButton.setLayoutParams(new LinearLayout.LayoutParams(LayoutParams.MATCH_PARENT,LayoutParams.WRAP_CONTENT));
-        mTextView = (TextView) findViewById(R.id.chatHistory);
+        mHistoryView = (ChatHistoryView) findViewById(R.id.chatHistory);
+        mRenderer = new ChatRenderer(mHistoryView, new Handler());
 
         EditText inputField = (EditText) findViewById(R.id.message);
         msgField = inputField;
@@ -212,8 +276,7 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
                 if ((keyEvent != null && (keyEvent.getKeyCode() == KeyEvent.KEYCODE_ENTER)) || (actionId == EditorInfo.IME_ACTION_DONE)) {
                     CharSequence text = textView.getText();
 
-                    ChatMessage message = new ChatMessage(userName, text.toString(), mLocation, newTag);
-                    sendMessageToService(message);
+                    sendChatMessage(text.toString());
                     textView.setText("");
                 }
                 return false;
@@ -221,7 +284,12 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
         });
 
         updateLocation();
-        doBindService();
+        if (BuildConfig.DEBUG_MODE && getIntent().getBooleanExtra(UiBenchmark.EXTRA, false)) {
+            mBenchmark = new UiBenchmark(mIncomingHandler);
+            mBenchmark.start();
+        } else {
+            doBindService();
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.N)
@@ -247,6 +315,23 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
     protected void onDestroy() {
         super.onDestroy();
         doUnbindService();
+        mHandler.removeCallbacks(mHiveSwitchTimeout);
+        if (null != mBenchmark) {
+            mBenchmark.stop();
+        }
+        mRenderer.quit();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Not on TRIM_MEMORY_UI_HIDDEN or TRIM_MEMORY_BACKGROUND, which come with every trip to
+        // the home screen
+        if (TRIM_MEMORY_RUNNING_LOW == level || TRIM_MEMORY_RUNNING_CRITICAL == level
+                || TRIM_MEMORY_MODERATE <= level) {
+            mHistoryView.trim(TRIMMED_HISTORY_LINES);
+            mRenderer.trimMemory();
+        }
     }
 
     @Override
@@ -292,26 +377,7 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
                     new DialogInterface.OnClickListener() {
                         public void onClick(DialogInterface dialog, int which) {
                             //Toast.makeText(getApplicationContext(), "Sup", Toast.LENGTH_SHORT).show();
-                            newTag = input.getText().toString();
-
-                            mTextView.setText("Entered hive #"+newTag);;
-                            SubscriptionChangeMessage subChangeMessage = new SubscriptionChangeMessage(newTag, mLocation);
-                            sendSubscriptionChangeMessageToService(subChangeMessage);
-
-                            final Runnable r = new Runnable() {
-                                public void run() {
-                                    sendMessageToService(new ChatMessage("Queen Bee", "User "+userName+" has joined.", mLocation, newTag));
-                                }
-                            };
-                            Handler handler = new Handler();
-                            handler.postDelayed(r, 1000);
-
-                            if (newTag.equals("")){
-                                setTitle(("Hivestr").trim());
-                            }
-                            else {
-                                setTitle(("Hivestr #" + (newTag).toLowerCase()).trim());
-                            }
+                            enterHive(input.getText().toString());
                         }
                     }
             );
@@ -320,10 +386,158 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
             return true;
         }
 
+        if (id == R.id.search_hive) {
+            AlertDialog alertDialog = new AlertDialog.Builder(MainActivity.this).create();
+            alertDialog.setTitle("Search");
+            alertDialog.setMessage("Search the messages of this hive for:");
+
+            final EditText input = new EditText(MainActivity.this);
+            input.setLayoutParams(new LinearLayout.LayoutParams(
+                    LinearLayout.LayoutParams.MATCH_PARENT,
+                    LinearLayout.LayoutParams.MATCH_PARENT));
+            alertDialog.setView(input);
+
+            alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL, "Cancel",
+                    new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            dialog.dismiss();
+                        }
+                    }
+            );
+            alertDialog.setButton(AlertDialog.BUTTON_POSITIVE, "Search",
+                    new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            sendSearchToService(newTag, input.getText().toString());
+                        }
+                    }
+            );
+
+            alertDialog.show();
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
 
+    private final Runnable mHiveSwitchTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (null != mPendingHive) {
+                onHiveSwitchFailed(mPendingHive, "timed out");
+            }
+        }
+    };
+
+    // Switches to the hive; the UI follows once the service reports the subscription is up
+    private void enterHive(String tag) {
+        // Already shown: nothing to clear, and the subscription is up
+        if (null == mPendingHive && tag.equals(newTag)) {
+            return;
+        }
+        mPendingHive = tag;
+        mHandler.removeCallbacks(mHiveSwitchTimeout);
+        mHandler.postDelayed(mHiveSwitchTimeout, HIVE_SWITCH_TIMEOUT_MS);
+        SubscriptionChangeMessage subChangeMessage = new SubscriptionChangeMessage(tag, mLocation);
+        subChangeMessage.announcement = new ChatMessage("Queen Bee", "User "+userName+" has joined.", mLocation, tag);
+        sendSubscriptionChangeMessageToService(subChangeMessage);
+    }
+
+    // Stays in the hive shown and points the service back at it
+    private void onHiveSwitchFailed(String tag, String reason) {
+        mPendingHive = null;
+        mHandler.removeCallbacks(mHiveSwitchTimeout);
+        addInfoLine("Could not enter hive #" + tag + ": " + reason);
+        sendSubscriptionChangeMessageToService(new SubscriptionChangeMessage(newTag, mLocation));
+    }
+
+    private void onHiveEntered(String tag) {
+        newTag = tag;
+        mHandler.removeCallbacks(mHiveSwitchTimeout);
+        clearHistory();
+        addTextLine("Entered hive #"+tag);
+        if (tag.equals("")){
+            setTitle(("Hivestr").trim());
+        }
+        else {
+            setTitle(("Hivestr #" + (tag).toLowerCase()).trim());
+        }
+    }
+
+    private void clearHistory() {
+        mHistoryGeneration++;
+        mHistoryView.clear();
+    }
+
+    private void addMessageLine(String nick, String text) {
+        mRenderer.renderMessage(nick, text, new HistoryLineCallback(mHistoryGeneration));
+    }
+
+    private void addInfoLine(String info) {
+        mRenderer.renderInfo(info, new HistoryLineCallback(mHistoryGeneration));
+    }
+
+    private void addTextLine(String text) {
+        mRenderer.renderText(text, new HistoryLineCallback(mHistoryGeneration));
+    }
+
+    // Shows the message right away as pending; the server's echo or acknowledgement confirms it
+    private void sendChatMessage(String text) {
+        ChatMessage message = new ChatMessage(userName, text, mLocation, newTag);
+        message.id = UUID.randomUUID().toString();
+        final SentMessage sent = new SentMessage(message.id, userName, text, mHistoryGeneration);
+        mSentMessages.put(sent.id, sent);
+        renderSentMessage(sent);
+        scheduleSendTimeout(sent);
+        sendMessageToService(message);
+    }
+
+    private void scheduleSendTimeout(final SentMessage sent) {
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (ChatRenderer.SENT_PENDING == sent.state) {
+                    setSentState(sent, ChatRenderer.SENT_FAILED);
+                }
+            }
+        }, SEND_TIMEOUT_MS);
+    }
+
+    // Our own message is already shown, its echo only confirms it. Returns false if the echo
+    // is someone else's message or ours is no longer shown, and needs a line of its own.
+    private boolean confirmEcho(String id) {
+        SentMessage sent = null != id ? mSentMessages.remove(id) : null;
+        if (null == sent || sent.generation != mHistoryGeneration) {
+            return false;
+        }
+        setSentState(sent, ChatRenderer.SENT_CONFIRMED);
+        return true;
+    }
+
+    private void setSentState(SentMessage sent, int state) {
+        if (sent.state != state) {
+            sent.state = state;
+            renderSentMessage(sent);
+        }
+    }
+
+    private void renderSentMessage(final SentMessage sent) {
+        mRenderer.renderSentMessage(sent.nick, sent.text, sent.state, new ChatRenderer.Callback() {
+            @Override
+            public void onRendered(ChatHistoryView.Line line) {
+                // Gone with the history of the hive it was sent to
+                if (sent.generation != mHistoryGeneration) {
+                    return;
+                }
+                if (null == sent.line) {
+                    mHistoryView.prepend(line);
+                    sent.line = line;
+                } else if (mHistoryView.replace(sent.line, line)) {
+                    sent.line = line;
+                }
+            }
+        });
+    }
+
     private void sendMessageToService(ChatMessage message) {
         if (mIsBound) {
             if (mService != null) {
@@ -338,6 +552,54 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
         }
     }
 
+    private void sendEventToService(int what) {
+        if (mIsBound && mService != null) {
+            try {
+                Message msg = Message.obtain(null, what);
+                msg.replyTo = mIncomingMessenger;
+                mService.send(msg);
+            } catch (RemoteException e) {
+
+            }
+        }
+    }
+
+    private void sendSearchToService(String tag, String query) {
+        if (mIsBound && mService != null) {
+            try {
+                Bundle b = new Bundle();
+                b.putString("tag", tag);
+                b.putString("query", query);
+                Message msg = Message.obtain(null, SatoriService.EVENT_SEARCH);
+                msg.setData(b);
+                msg.replyTo = mIncomingMessenger;
+                mService.send(msg);
+            } catch (RemoteException e) {
+
+            }
+        }
+    }
+
+    private void showSearchResults(String query, List<String> nicks, List<String> texts) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
+        builder.setTitle("\"" + query + "\"");
+        if (texts.isEmpty()) {
+            builder.setMessage("No messages found");
+        } else {
+            String[] items = new String[texts.size()];
+            for (int i = 0; i < texts.size(); i++) {
+                items[i] = "<" + nicks.get(i) + "> " + texts.get(i);
+            }
+            builder.setItems(items, null);
+        }
+        builder.setPositiveButton("OK", null);
+        builder.show();
+    }
+
+    private void onRosterChanged() {
+        countTxt.setText(Integer.toString(mRoster.size()));
+    }
+
     private void sendSubscriptionChangeMessageToService(SubscriptionChangeMessage subChangeMessage){
         if(mIsBound){
             if(mService != null){
@@ -384,6 +646,38 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
         }
     }
 
+    private static class SentMessage {
+        final String id;
+        final String nick;
+        final String text;
+        final int generation;
+        int state = ChatRenderer.SENT_PENDING;
+        // Set once rendered into the history
+        ChatHistoryView.Line line;
+
+        SentMessage(String id, String nick, String text, int generation) {
+            this.id = id;
+            this.nick = nick;
+            this.text = text;
+            this.generation = generation;
+        }
+    }
+
+    private class HistoryLineCallback implements ChatRenderer.Callback {
+        private final int mGeneration;
+
+        HistoryLineCallback(int generation) {
+            mGeneration = generation;
+        }
+
+        @Override
+        public void onRendered(ChatHistoryView.Line line) {
+            if (mGeneration == mHistoryGeneration) {
+                mHistoryView.prepend(line);
+            }
+        }
+    }
+
     // Handler of all incoming events from Service
     static class IncomingHandler extends Handler {
         private final WeakReference<MainActivity> mActivityRef;
@@ -400,17 +694,44 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
                 return;
             }
 
-            String html = "";
-            if (null != activity.mTextView.getEditableText()) {
-                html = Html.toHtml(activity.mTextView.getEditableText());
-            }
-
             switch (event.what) {
                 case SatoriService.EVENT_RECEIVE_CHAT_MESSAGE: {
+                    if (activity.confirmEcho(event.getData().getString("id"))) {
+                        break;
+                    }
                     String nick = event.getData().getString("nick");
                     String message = event.getData().getString("text");
-                    String text = String.format("<b>&lt;%s&gt;</b> %s", nick, message);
-                    activity.mTextView.setText(Html.fromHtml(text + "<br/>" + html), TextView.BufferType.EDITABLE);
+                    activity.addMessageLine(nick, message);
+                    break;
+                }
+                case SatoriService.EVENT_SEND_STATUS: {
+                    SentMessage sent = activity.mSentMessages.get(event.getData().getString("id"));
+                    if (null != sent && ChatRenderer.SENT_CONFIRMED != sent.state
+                            && ChatRenderer.SENT_DROPPED != sent.state) {
+                        if (event.getData().getBoolean("acked")) {
+                            activity.setSentState(sent, ChatRenderer.SENT_CONFIRMED);
+                        } else if (event.getData().getBoolean("dropped")) {
+                            activity.setSentState(sent, ChatRenderer.SENT_DROPPED);
+                        } else {
+                            activity.setSentState(sent, ChatRenderer.SENT_FAILED);
+                        }
+                    }
+                    break;
+                }
+                case SatoriService.EVENT_RECEIVE_CHAT_BATCH: {
+                    List<String> ids = event.getData().getStringArrayList("ids");
+                    List<String> nicks = event.getData().getStringArrayList("nicks");
+                    List<String> texts = event.getData().getStringArrayList("texts");
+                    int unread = event.getData().getInt("unread");
+                    // Lines are added on top, so the oldest one goes first
+                    if (texts.size() < unread) {
+                        activity.addInfoLine(String.format("%d earlier messages not shown", unread - texts.size()));
+                    }
+                    for (int i = 0; i < texts.size(); i++) {
+                        if (!activity.confirmEcho(ids.get(i))) {
+                            activity.addMessageLine(nicks.get(i), texts.get(i));
+                        }
+                    }
                     break;
                 }
                 case SatoriService.EVENT_RECEIVE_USER_COUNT: {
@@ -426,16 +747,82 @@ public class MainActivity extends AppCompatActivity implements View.OnCreateCont
                     //activity.mTextView.setText(Html.fromHtml(text + "<br/>" + html), TextView.BufferType.EDITABLE);
                     break;
                 }
-                case SatoriService.EVENT_USER_JOIN: {
-                    String nick = event.getData().getString("nick");
-                    String text = String.format("<font color=#cc0000><i>User &lt;%s&gt; joined the channel</i></font>", nick);
-                    //activity.mTextView.setText(Html.fromHtml(text + "<br/>" + html), TextView.BufferType.EDITABLE);
+                case SatoriService.EVENT_SUBSCRIBED: {
+                    String tag = event.getData().getString("tag");
+                    String error = event.getData().getString("error");
+                    if (null != error) {
+                        if (null != activity.mPendingHive && activity.mPendingHive.equals(tag)) {
+                            activity.onHiveSwitchFailed(tag, error);
+                        } else if (activity.newTag.equals(tag)) {
+                            activity.addInfoLine(error);
+                        }
+                        break;
+                    }
+                    // Location updates resubscribe too, only a hive switch changes the screen
+                    if (null != activity.mPendingHive && activity.mPendingHive.equals(tag)) {
+                        activity.mPendingHive = null;
+                        activity.onHiveEntered(tag);
+                    } else if (null == activity.mPendingHive && !activity.newTag.equals(tag)) {
+                        // The service is in another hive, e.g. restored after a restart
+                        activity.onHiveEntered(tag);
+                    }
                     break;
                 }
-                case SatoriService.EVENT_USER_LEFT: {
-                    String nick = event.getData().getString("nick");
-                    String text = String.format("<font color=#cc0000><i>User &lt;%s&gt; left the channel</i></font>", nick);
-                    //activity.mTextView.setText(Html.fromHtml(text + "<br/>" + html), TextView.BufferType.EDITABLE);
+                case SatoriService.EVENT_HIVE_WINDOW: {
+                    String tag = event.getData().getString("tag");
+                    // Cached messages of the hive being entered: switch now, not when subscribed
+                    if (null != activity.mPendingHive && activity.mPendingHive.equals(tag)) {
+                        activity.mPendingHive = null;
+                        activity.onHiveEntered(tag);
+                        List<String> ids = event.getData().getStringArrayList("ids");
+                        List<String> nicks = event.getData().getStringArrayList("nicks");
+                        List<String> texts = event.getData().getStringArrayList("texts");
+                        // The history was just cleared, so our own messages get lines too; their
+                        // echoes are consumed so they do not show up again
+                        for (int i = 0; i < texts.size(); i++) {
+                            if (!activity.confirmEcho(ids.get(i))) {
+                                activity.addMessageLine(nicks.get(i), texts.get(i));
+                            }
+                        }
+                    }
+                    break;
+                }
+                case SatoriService.EVENT_TRENDING_TAGS: {
+                    List<String> tags = event.getData().getStringArrayList("tags");
+                    for (int i = 0; i < tags.size() && i < activity.mTrendingTagViews.length; i++) {
+                        activity.mTrendingTagViews[i].setText("#" + tags.get(i));
+                    }
+                    break;
+                }
+                case SatoriService.EVENT_ROSTER_SNAPSHOT: {
+                    activity.mRoster.clear();
+                    activity.mRoster.addAll(event.getData().getStringArrayList("users"));
+                    activity.mRosterVersion = event.getData().getLong("version");
+                    activity.onRosterChanged();
+                    break;
+                }
+                case SatoriService.EVENT_ROSTER_DELTA: {
+                    long fromVersion = event.getData().getLong("from_version");
+                    if (fromVersion != activity.mRosterVersion) {
+                        // Not based on what we have. Before the first snapshot this is expected,
+                        // the snapshot follows; otherwise start over from a new snapshot.
+                        if (0 <= activity.mRosterVersion) {
+                            activity.mRosterVersion = -1;
+                            activity.sendEventToService(SatoriService.EVENT_REQUEST_ROSTER);
+                        }
+                        break;
+                    }
+                    activity.mRoster.addAll(event.getData().getStringArrayList("added"));
+                    activity.mRoster.removeAll(event.getData().getStringArrayList("removed"));
+                    activity.mRosterVersion = event.getData().getLong("version");
+                    activity.onRosterChanged();
+                    break;
+                }
+                case SatoriService.EVENT_SEARCH_RESULTS: {
+                    String query = event.getData().getString("query");
+                    List<String> nicks = event.getData().getStringArrayList("nicks");
+                    List<String> texts = event.getData().getStringArrayList("texts");
+                    activity.showSearchResults(query, nicks, texts);
                     break;
                 }
                 case SatoriService.EVENT_INFO: {
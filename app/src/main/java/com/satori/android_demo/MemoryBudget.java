@@ -0,0 +1,123 @@
+package com.satori.android_demo;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Byte caps of everything the service keeps in memory that grows with traffic.
+ * <p>
+ * Each consumer registers with a cap and a floor and enforces the limit it is given on its own,
+ * as it grows. On memory pressure the limits are lowered in tiers, down to the floors in the
+ * worst case, and restored once no pressure was reported for {@link #RECOVERY_MS}. The sum of
+ * the caps bounds the heap the service holds, however much data arrives.
+ * <p>
+ * All methods are thread-safe.
+ */
+class MemoryBudget {
+    private static final String TAG = "MemoryBudget";
+    private static final long RECOVERY_MS = 5 * 60 * 1000;
+
+    /**
+     * Something holding a variable amount of memory.
+     */
+    interface Consumer {
+        /**
+         * Returns the estimated heap bytes held.
+         */
+        long bytes();
+
+        /**
+         * Limits the heap held to about {@code maxBytes}, dropping what does not fit right away.
+         */
+        void setLimit(long maxBytes);
+    }
+
+    private final List<Registration> mRegistrations = new ArrayList<Registration>();
+    // Share of the caps currently allowed
+    private float mScale = 1;
+    private long mLastPressureTime;
+
+    synchronized void register(String name, Consumer consumer, long maxBytes, long minBytes) {
+        Registration registration = new Registration(name, consumer, maxBytes, minBytes);
+        mRegistrations.add(registration);
+        consumer.setLimit(registration.limit(mScale));
+    }
+
+    /**
+     * Lowers the limits according to the level of {@link ComponentCallbacks2#onTrimMemory}.
+     * {@code TRIM_MEMORY_UI_HIDDEN} and {@code TRIM_MEMORY_BACKGROUND} are ignored: the service
+     * shares the activity's process, which gets them every time the user leaves the app.
+     */
+    synchronized void onTrimMemory(int level, long now) {
+        float scale;
+        if (ComponentCallbacks2.TRIM_MEMORY_COMPLETE <= level
+                || ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL == level) {
+            scale = 0;
+        } else if (ComponentCallbacks2.TRIM_MEMORY_MODERATE <= level
+                || ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW == level) {
+            scale = 0.25f;
+        } else if (ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE == level) {
+            scale = 0.5f;
+        } else {
+            return;
+        }
+        mLastPressureTime = now;
+        if (scale < mScale) {
+            Log.i(TAG, "Trimming to " + (int) (scale * 100) + "% on level " + level);
+            apply(scale);
+        }
+    }
+
+    void onLowMemory(long now) {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE, now);
+    }
+
+    /**
+     * Restores the full caps if the pressure is over. Call periodically.
+     */
+    synchronized void check(long now) {
+        if (mScale < 1 && RECOVERY_MS <= now - mLastPressureTime) {
+            Log.i(TAG, "Restoring the full budget");
+            apply(1);
+        }
+    }
+
+    synchronized void print(PrintWriter writer) {
+        writer.printf(Locale.US, "memory %.0f%%%n", mScale * 100);
+        writer.println("consumer bytes limit cap");
+        for (Registration registration : mRegistrations) {
+            writer.printf(Locale.US, "%s %d %d %d%n", registration.name, registration.consumer.bytes(),
+                    registration.limit(mScale), registration.maxBytes);
+        }
+    }
+
+    private void apply(float scale) {
+        mScale = scale;
+        for (Registration registration : mRegistrations) {
+            registration.consumer.setLimit(registration.limit(scale));
+        }
+    }
+
+    private static class Registration {
+        final String name;
+        final Consumer consumer;
+        final long maxBytes;
+        final long minBytes;
+
+        Registration(String name, Consumer consumer, long maxBytes, long minBytes) {
+            this.name = name;
+            this.consumer = consumer;
+            this.maxBytes = maxBytes;
+            this.minBytes = minBytes;
+        }
+
+        long limit(float scale) {
+            return Math.max(minBytes, (long) (maxBytes * scale));
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.satori.android_demo;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Durable queue of outgoing chat messages.
+ * <p>
+ * Messages are appended to a log file before they are published, so anything sent while the
+ * client is offline survives the process being killed. Writes happen on a dedicated thread and
+ * are group-committed: all messages queued since the last commit are appended and synced with a
+ * single fsync. When the publish is acknowledged an ACK record is appended (without a sync; a
+ * lost ACK only causes a harmless re-send). Records are encoded in full before anything is
+ * written, and a failed write is cut off the log, so a replay never misreads the records after it.
+ * <p>
+ * A publish that fails while connected is retried with a growing delay; after
+ * {@link #MAX_ATTEMPTS} failures the server is taken to reject the message for good and it is
+ * dropped (with an ACK record, so a replay does not bring it back). A publish that fails because
+ * the client disconnected is not counted, it goes out again on the next flush.
+ * <p>
+ * On start the log is replayed and the messages without an ACK are published again in their
+ * original order. Every message carries a client-generated id so receivers can drop the
+ * duplicates a re-send may cause.
+ */
+class Outbox {
+    private static final String TAG = "Outbox";
+    private static final byte RECORD_SEND = 1;
+    private static final byte RECORD_ACK = 2;
+    // Once everything is acknowledged, the log is truncated if it grew beyond this size
+    private static final long COMPACT_THRESHOLD_BYTES = 64 * 1024;
+    // Retry delays while connected: doubling from the first, up to the last
+    private static final long RETRY_DELAY_MS = 2000;
+    private static final long MAX_RETRY_DELAY_MS = 60000;
+    // Failed publishes (while connected) before a message is dropped
+    static final int MAX_ATTEMPTS = 6;
+
+    /**
+     * Publishes messages on behalf of the outbox.
+     */
+    interface Transport {
+        /**
+         * Returns the pending publish acknowledgement or {@code null} if the message cannot be
+         * sent right now (e.g. the client is disconnected).
+         */
+        ListenableFuture<?> publish(ChatMessage message);
+
+        boolean isConnected();
+    }
+
+    /**
+     * Learns the outcome of publishes, on the outbox thread. A failed message stays in the
+     * outbox and is published again later, a dropped one is gone for good.
+     */
+    interface Listener {
+        void onAck(ChatMessage message);
+
+        void onFailure(ChatMessage message);
+
+        void onDropped(ChatMessage message);
+    }
+
+    private final File mFile;
+    private final Transport mTransport;
+    private final Listener mListener;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final List<ChatMessage> mQueue = new ArrayList<ChatMessage>();
+    // Written but not yet acknowledged messages in send order, accessed on the outbox thread only
+    private final Map<String, Entry> mPending = new LinkedHashMap<String, Entry>();
+    private FileOutputStream mFileStream;
+    private DataOutputStream mOut;
+
+    private final Runnable mCommitTask = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    Outbox(File file, Transport transport, Listener listener) {
+        this.mFile = file;
+        this.mTransport = transport;
+        this.mListener = listener;
+        this.mThread = new HandlerThread("outbox");
+        this.mThread.start();
+        this.mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Replays the log left by the previous process.
+     */
+    void open() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+                flush();
+            }
+        });
+    }
+
+    void close() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeStream();
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Queues the message for sending. Never blocks on disk or network.
+     */
+    void enqueue(ChatMessage message) {
+        if (null == message.id) {
+            message.id = UUID.randomUUID().toString();
+        }
+        message.user = ChatMessage.clip(message.user);
+        message.text = ChatMessage.clip(message.text);
+        message.tag = ChatMessage.clip(message.tag);
+        synchronized (mQueue) {
+            mQueue.add(message);
+            // A commit already scheduled picks this message up too
+            if (1 == mQueue.size()) {
+                mHandler.post(mCommitTask);
+            }
+        }
+    }
+
+    /**
+     * Publishes every pending message that is not in flight. Call when the client (re)connects.
+     */
+    void flush() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Entry entry : mPending.values()) {
+                    if (!entry.inFlight) {
+                        publish(entry);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Marks in-flight messages for re-sending. Call when the client disconnects.
+     */
+    void reset() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Entry entry : mPending.values()) {
+                    entry.inFlight = false;
+                }
+            }
+        });
+    }
+
+    private void commit() {
+        List<ChatMessage> batch;
+        synchronized (mQueue) {
+            batch = new ArrayList<ChatMessage>(mQueue);
+            mQueue.clear();
+        }
+        long length = mFile.length();
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream encoder = new DataOutputStream(records);
+            for (ChatMessage message : batch) {
+                writeSend(encoder, message);
+            }
+            DataOutputStream out = stream();
+            records.writeTo(out);
+            out.flush();
+            mFileStream.getFD().sync();
+        } catch (IOException ex) {
+            // Still try to send, the messages are just not durable
+            Log.e(TAG, "Failed to write outbox", ex);
+            closeStream();
+            truncate(length);
+        }
+        for (ChatMessage message : batch) {
+            Entry entry = new Entry(message);
+            mPending.put(message.id, entry);
+            publish(entry);
+        }
+    }
+
+    private void publish(final Entry entry) {
+        ListenableFuture<?> reply = mTransport.publish(entry.message);
+        if (null == reply) {
+            return;
+        }
+        entry.inFlight = true;
+        Futures.addCallback(reply, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onAck(entry.message);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Log.w(TAG, "Failed to publish " + entry.message.id, t);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Outbox.this.onFailure(entry);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onFailure(final Entry entry) {
+        entry.inFlight = false;
+        // Acknowledged by an earlier attempt, or dropped meanwhile
+        if (entry != mPending.get(entry.message.id)) {
+            return;
+        }
+        // Lost with the connection, the flush on reconnect sends it again
+        if (!mTransport.isConnected()) {
+            mListener.onFailure(entry.message);
+            return;
+        }
+        entry.failures++;
+        if (MAX_ATTEMPTS <= entry.failures) {
+            Log.w(TAG, "Dropping " + entry.message.id + " after " + entry.failures + " failed publishes");
+            mPending.remove(entry.message.id);
+            mListener.onDropped(entry.message);
+            writeAck(entry.message.id);
+            return;
+        }
+        mListener.onFailure(entry.message);
+        long delay = Math.min(MAX_RETRY_DELAY_MS, RETRY_DELAY_MS << (entry.failures - 1));
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                // A flush may have sent it already
+                if (entry == mPending.get(entry.message.id) && !entry.inFlight) {
+                    publish(entry);
+                }
+            }
+        }, delay);
+    }
+
+    private void onAck(ChatMessage message) {
+        if (null == mPending.remove(message.id)) {
+            return;
+        }
+        mListener.onAck(message);
+        writeAck(message.id);
+    }
+
+    private void writeAck(String id) {
+        long length = mFile.length();
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream encoder = new DataOutputStream(record);
+            encoder.writeByte(RECORD_ACK);
+            encoder.writeUTF(id);
+            DataOutputStream out = stream();
+            record.writeTo(out);
+            out.flush();
+            if (mPending.isEmpty() && COMPACT_THRESHOLD_BYTES < mFile.length()) {
+                closeStream();
+                new FileOutputStream(mFile).close();
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to write outbox", ex);
+            closeStream();
+            truncate(length);
+        }
+    }
+
+    private void replay() {
+        if (!mFile.exists()) {
+            return;
+        }
+        // End of the last complete record
+        long end = 0;
+        DataInputStream in = null;
+        try {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            in = new DataInputStream(counter);
+            while (true) {
+                byte type = in.readByte();
+                if (RECORD_SEND == type) {
+                    ChatMessage message = readSend(in);
+                    mPending.put(message.id, new Entry(message));
+                } else if (RECORD_ACK == type) {
+                    mPending.remove(in.readUTF());
+                } else {
+                    Log.w(TAG, "Unknown outbox record " + type + ", ignoring the rest");
+                    break;
+                }
+                end = counter.count;
+            }
+        } catch (EOFException ex) {
+            // End of log, or a record torn by a crash
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to read outbox", ex);
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        // Start a new log with just the pending messages. It replaces the old one once synced,
+        // so being killed or failing halfway leaves the old log as it was.
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream fileStream = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+                for (Entry entry : mPending.values()) {
+                    writeSend(out, entry.message);
+                }
+                out.flush();
+                fileStream.getFD().sync();
+            } finally {
+                fileStream.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Cannot replace " + mFile);
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to compact outbox, appending to it", ex);
+            tmp.delete();
+            // New records go right after the last complete one
+            truncate(end);
+        }
+        Log.i(TAG, "Replayed outbox, " + mPending.size() + " pending message(s)");
+    }
+
+    private DataOutputStream stream() throws IOException {
+        if (null == mOut) {
+            mFileStream = new FileOutputStream(mFile, true);
+            mOut = new DataOutputStream(new BufferedOutputStream(mFileStream));
+        }
+        return mOut;
+    }
+
+    private void closeStream() {
+        if (null != mOut) {
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mOut = null;
+        mFileStream = null;
+    }
+
+    // Cuts off a partly written record, so the next one starts right after the last good one
+    private void truncate(long length) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                if (length < file.length()) {
+                    file.setLength(length);
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to truncate outbox", ex);
+        }
+    }
+
+    private static void writeSend(DataOutputStream out, ChatMessage message) throws IOException {
+        out.writeByte(RECORD_SEND);
+        out.writeUTF(message.id);
+        out.writeUTF(null != message.user ? message.user : "");
+        out.writeUTF(null != message.text ? message.text : "");
+        out.writeDouble(message.lat);
+        out.writeDouble(message.lon);
+        out.writeUTF(null != message.tag ? message.tag : "");
+    }
+
+    private static ChatMessage readSend(DataInputStream in) throws IOException {
+        ChatMessage message = new ChatMessage();
+        message.id = in.readUTF();
+        message.user = in.readUTF();
+        message.text = in.readUTF();
+        message.lat = in.readDouble();
+        message.lon = in.readDouble();
+        message.tag = in.readUTF();
+        return message;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (0 <= b) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (0 < read) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static class Entry {
+        final ChatMessage message;
+        boolean inFlight;
+        // Publishes that failed while connected
+        int failures;
+
+        Entry(ChatMessage message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.satori.android_demo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versioned set of online users.
+ * <p>
+ * Changes are collected and handed out as coalesced deltas (a user who joins and leaves between
+ * two deltas does not appear at all), each delta moving the roster to the next version. A
+ * consumer starts from a snapshot and then applies the deltas in order, so keeping a user list
+ * up to date costs one message per batch of changes rather than one per user.
+ * <p>
+ * Under a memory limit the roster holds a bounded number of users: newcomers beyond it are not
+ * tracked, and lowering the limit drops the users closest to going offline.
+ * <p>
+ * All methods are thread-safe.
+ */
+class Roster implements MemoryBudget.Consumer {
+    // Estimated heap size of a user entry: map entry, boxed deadline and a short name
+    private static final int USER_BYTES = 160;
+
+    // User -> time when the user is considered offline
+    private final Map<String, Long> mDeadlines = new HashMap<String, Long>();
+    private final Set<String> mAdded = new LinkedHashSet<String>();
+    private final Set<String> mRemoved = new LinkedHashSet<String>();
+    private long mVersion;
+    private int mMaxUsers = Integer.MAX_VALUE;
+
+    /**
+     * Extends the user's deadline, never shortening it. Returns true if the user was not online.
+     */
+    synchronized boolean touch(String user, long deadline) {
+        Long current = mDeadlines.get(user);
+        if (null != current) {
+            if (current < deadline) {
+                mDeadlines.put(user, deadline);
+            }
+            return false;
+        }
+        if (mMaxUsers <= mDeadlines.size()) {
+            return false;
+        }
+        mDeadlines.put(user, deadline);
+        if (!mRemoved.remove(user)) {
+            mAdded.add(user);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the users whose deadline passed. Returns true if there were any.
+     */
+    synchronized boolean expire(long now) {
+        boolean changed = false;
+        for (Iterator<Map.Entry<String, Long>> it = mDeadlines.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() < now) {
+                it.remove();
+                if (!mAdded.remove(entry.getKey())) {
+                    mRemoved.add(entry.getKey());
+                }
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public synchronized long bytes() {
+        return (long) mDeadlines.size() * USER_BYTES;
+    }
+
+    @Override
+    public synchronized void setLimit(long maxBytes) {
+        mMaxUsers = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / USER_BYTES));
+        if (mDeadlines.size() <= mMaxUsers) {
+            return;
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(mDeadlines.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return a.getValue().compareTo(b.getValue());
+            }
+        });
+        for (int i = 0; i < entries.size() - mMaxUsers; i++) {
+            String user = entries.get(i).getKey();
+            mDeadlines.remove(user);
+            if (!mAdded.remove(user)) {
+                mRemoved.add(user);
+            }
+        }
+    }
+
+    synchronized List<String> users() {
+        return new ArrayList<String>(mDeadlines.keySet());
+    }
+
+    /**
+     * Returns the changes since the last delta, or {@code null} if there are none.
+     */
+    synchronized Delta takeDelta() {
+        if (mAdded.isEmpty() && mRemoved.isEmpty()) {
+            return null;
+        }
+        Delta delta = new Delta(mVersion, mVersion + 1, new ArrayList<String>(mAdded), new ArrayList<String>(mRemoved));
+        mAdded.clear();
+        mRemoved.clear();
+        mVersion++;
+        return delta;
+    }
+
+    /**
+     * Returns the current users. Changes not yet handed out in a delta are folded into a new
+     * version first and returned with the snapshot, consumers that are already up to date need
+     * them to reach the snapshot version.
+     */
+    synchronized Snapshot snapshot() {
+        Delta pending = takeDelta();
+        return new Snapshot(mVersion, new ArrayList<String>(mDeadlines.keySet()), pending);
+    }
+
+    static class Snapshot {
+        final long version;
+        final ArrayList<String> users;
+        // Changes folded into this version, may be null
+        final Delta pending;
+
+        Snapshot(long version, ArrayList<String> users, Delta pending) {
+            this.version = version;
+            this.users = users;
+            this.pending = pending;
+        }
+    }
+
+    static class Delta {
+        final long fromVersion;
+        final long version;
+        final ArrayList<String> added;
+        final ArrayList<String> removed;
+
+        Delta(long fromVersion, long version, ArrayList<String> added, ArrayList<String> removed) {
+            this.fromVersion = fromVersion;
+            this.version = version;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+}
@@ -26,14 +26,24 @@ import com.satori.rtm.model.SubscribeRequest;
 import com.satori.rtm.model.SubscriptionData;
 import com.satori.rtm.model.SubscriptionError;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Service for interaction with Satori RTM.
@@ -47,9 +57,23 @@ import java.util.TimerTask;
  * The app uses two channels to interact with other chat users. The first channel is used as chat
  * room to send and receive messages. The second channel is used to track user presence.
  * The background Service automatically sends a presence message to the channel indicating that
- * the user is online (every {@value PRESENCE_INTERVAL_MS} milliseconds). If the service does not
- * receive a presence message for a specific user for {@value OFFLINE_USER_THRESHOLD_MS}
- * milliseconds, the app considers such user to be offline.
+ * the user is online (every {@value PRESENCE_INTERVAL_MS} milliseconds while the user is active,
+ * less often when idle or in background, with some random jitter). Every presence message carries
+ * the time until the sender's next one; if the service does not receive a presence message for a
+ * specific user for {@value ChatInbound#OFFLINE_INTERVALS} such intervals, the app considers such user to be
+ * offline. A chat message received in the current hive also counts as a heartbeat of its sender,
+ * so a heartbeat right after a chat message is skipped; never two in a row, so the longest gap
+ * stays within the offline threshold for users in other hives, who do not see that chat.
+ * <p>
+ * While no activity is bound the service runs in background mode: it builds no UI events, only
+ * keeps the latest chat messages and an unread count, and sends presence less often. The kept
+ * messages are delivered as one batch when an activity binds again.
+ * <p>
+ * The roster of online users is versioned: a bound activity gets a snapshot and then coalesced
+ * deltas at most every {@value ROSTER_DELTA_INTERVAL_MS} milliseconds.
+ * <p>
+ * The service also watches the tags of all nearby messages and keeps a decaying top list of the
+ * busiest hives, which is pushed to the UI whenever the ranking changes.
  */
 public class SatoriService extends Service {
     private static final String TAG = "SatoriService";
@@ -57,24 +81,102 @@ public class SatoriService extends Service {
     static final int EVENT_BIND_ACTIVITY = 2;
     static final int EVENT_UNBIND_ACTIVITY = 3;
     static final int EVENT_RECEIVE_CHAT_MESSAGE = 4;
-    static final int EVENT_USER_JOIN = 5;
-    static final int EVENT_USER_LEFT = 6;
     static final int EVENT_INFO = 7;
     static final int EVENT_CLIENT_STATE = 8;
     static final int EVENT_CHANGE_SUBSCRIPTION = 10;
     static final int EVENT_RECEIVE_USER_COUNT = 11;
+    static final int EVENT_TRENDING_TAGS = 12;
+    static final int EVENT_SUBSCRIBED = 13;
+    static final int EVENT_RECEIVE_CHAT_BATCH = 14;
+    static final int EVENT_ROSTER_SNAPSHOT = 15;
+    static final int EVENT_ROSTER_DELTA = 16;
+    static final int EVENT_REQUEST_ROSTER = 17;
+    static final int EVENT_SEARCH = 18;
+    static final int EVENT_SEARCH_RESULTS = 19;
+    static final int EVENT_HIVE_WINDOW = 20;
+    static final int EVENT_SEND_STATUS = 21;
 
     private static final int PRESENCE_INTERVAL_MS = 5000;
-    private static final int OFFLINE_USER_THRESHOLD_MS = (PRESENCE_INTERVAL_MS * 3);
+    private static final int PRESENCE_IDLE_INTERVAL_MS = 15000;
+    private static final int PRESENCE_BACKGROUND_INTERVAL_MS = 30000;
+    private static final double PRESENCE_JITTER = 0.2;
+    private static final int IDLE_AFTER_MS = 60000;
+    // Used for users who do not announce their interval
+    private static final int OFFLINE_USER_THRESHOLD_MS = (PRESENCE_INTERVAL_MS * ChatInbound.OFFLINE_INTERVALS);
+    private static final int TRENDING_TAGS_CAPACITY = 32;
+    private static final int TRENDING_TAGS_SHOWN = 5;
+    private static final long TRENDING_TAGS_HALF_LIFE_MS = 10 * 60 * 1000;
+    private static final int STATS_SNAPSHOT_INTERVAL_MS = 60000;
+    private static final int ROSTER_DELTA_INTERVAL_MS = 1000;
+    private static final int SEARCH_RESULTS_LIMIT = 50;
+    private static final int HIVE_WINDOW_SIZE = 100;
+    private static final int HIVE_CACHE_BYTES = 256 * 1024;
+    // Number of chip hives loaded ahead, and how long their history may take to arrive
+    private static final int PREFETCH_HIVES = 3;
+    private static final int PREFETCH_TIMEOUT_MS = 5000;
+    // A prefetch replays this much history, so reloading a window as often leaves no gaps
+    private static final int PREFETCH_REFRESH_MS = 60000;
+    // Memory caps and floors of what grows with traffic
+    private static final int SEARCH_INDEX_BYTES = 4 * 1024 * 1024;
+    private static final int SEARCH_INDEX_MIN_BYTES = 256 * 1024;
+    private static final int ROSTER_BYTES = 1024 * 1024;
+    private static final int ROSTER_MIN_BYTES = 64 * 1024;
+    private static final int BACKLOG_BYTES = 64 * 1024;
+    private static final int BACKLOG_MIN_BYTES = 8 * 1024;
+    private static final int DECODER_BYTES = 768 * 1024;
+    private static final BatchDecoder.Filter<ChatMessage> ACCEPT_ALL = new BatchDecoder.Filter<ChatMessage>() {
+        @Override
+        public boolean accept(ChatMessage message) {
+            return true;
+        }
+    };
 
     private final Messenger mIncomingEventHandler = new Messenger(new IncomingHandler(this));
     private final List<Messenger> mConsumers = new ArrayList<Messenger>();
-    private final Map<String, Long> mUserPresence = new HashMap<String, Long>();
+    private final Roster mRoster = new Roster();
+    private final Handler mMainHandler = new Handler();
+    private final AtomicBoolean mRosterFlushScheduled = new AtomicBoolean();
+    private final Runnable mRosterFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mRosterFlushScheduled.set(false);
+            flushRoster();
+        }
+    };
+    // Subscription id -> position of the last received data
+    private final Map<String, String> mPositions = new ConcurrentHashMap<String, String>();
     private final Timer mPresenceTimer = new Timer();
+    private final Random mRandom = new Random();
+    private final TrendingTags mTrendingTags = new TrendingTags(TRENDING_TAGS_CAPACITY, TRENDING_TAGS_HALF_LIFE_MS);
+    private List<String> mLastTrendingTags = new ArrayList<String>();
+    private final HiveCache mHiveCache = new HiveCache(HIVE_WINDOW_SIZE, HIVE_CACHE_BYTES);
+    // Hives with a prefetch subscription open
+    private final Set<String> mPrefetching = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     private boolean isServiceStarted = false;
     private RtmClient mRtmClient;
     private String mUsername;
+    private volatile ChatMessage mPendingAnnouncement;
+    private Outbox mOutbox;
+    private SearchIndex mSearchIndex;
+    private final BatchDecoder mDecoder = BatchDecoder.create();
+    private volatile SubscriptionChangeMessage mSubscription;
+    private volatile int mLastUserCount = -1;
+    private volatile boolean mCheckpointDirty;
+    private volatile String mResumePosition;
+    private TimerTask mPresenceTask;
+    // Interval announced in the last presence message
+    private long mPresenceInterval = PRESENCE_INTERVAL_MS;
+    private boolean mPresenceSkipped;
+    private volatile long mLastChatPublishTime;
+    private volatile long mLastUserActivityTime = System.currentTimeMillis();
+    // Until an activity binds the service is in background mode: nothing is built for the UI,
+    // chat messages are only kept for catch-up
+    private ChatInbound mInbound;
+    private final MemoryBudget mMemoryBudget = new MemoryBudget();
+    // Channel or subscription id -> traffic counters
+    private final ConcurrentHashMap<String, ChannelStats> mStats = new ConcurrentHashMap<String, ChannelStats>();
+    private long mLastStatsSnapshotTime = System.currentTimeMillis();
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -85,6 +187,57 @@ public class SatoriService extends Service {
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "Service Started.");
+        mOutbox = new Outbox(new File(getFilesDir(), "outbox.log"), new Outbox.Transport() {
+            @Override
+            public ListenableFuture<?> publish(ChatMessage message) {
+                RtmClient client = mRtmClient;
+                if (null == client || !client.isConnected()) {
+                    return null;
+                }
+                String channelName = getString(R.string.satori_message_channel_name);
+                mLastChatPublishTime = System.currentTimeMillis();
+                stats(channelName).onSent(ChannelStats.sizeOf(message));
+                return client.publish(channelName, message, Ack.YES);
+            }
+
+            @Override
+            public boolean isConnected() {
+                RtmClient client = mRtmClient;
+                return null != client && client.isConnected();
+            }
+        }, new Outbox.Listener() {
+            @Override
+            public void onAck(ChatMessage message) {
+                sendEventToUI(buildEventSendStatus(message.id, true, false));
+            }
+
+            @Override
+            public void onFailure(ChatMessage message) {
+                sendEventToUI(buildEventSendStatus(message.id, false, false));
+            }
+
+            @Override
+            public void onDropped(ChatMessage message) {
+                sendEventToUI(buildEventSendStatus(message.id, false, true));
+            }
+        });
+        mOutbox.open();
+        mSearchIndex = new SearchIndex(new File(getFilesDir(), "history.log"));
+        mSearchIndex.open();
+        mInbound = new ChatInbound(mDecoder, mSearchIndex, mHiveCache, mRoster, OFFLINE_USER_THRESHOLD_MS,
+                new ChatInbound.Listener() {
+                    @Override
+                    public void onChatMessage(ChatMessage message) {
+                        sendEventToUI(buildEventNewChatMessage(message.id, message.user, message.text));
+                    }
+
+                    @Override
+                    public void onRosterChanged() {
+                        SatoriService.this.onRosterChanged();
+                    }
+                });
+        registerMemoryConsumers();
+        restoreCheckpoint();
     }
 
     @Override
@@ -95,11 +248,7 @@ public class SatoriService extends Service {
             isServiceStarted = true;
             mUsername = getUserName();
             new CreateRtmClientTask().execute();
-            mPresenceTimer.scheduleAtFixedRate(new TimerTask() {
-                public void run() {
-                    onTimerTick();
-                }
-            }, PRESENCE_INTERVAL_MS, PRESENCE_INTERVAL_MS);
+            schedulePresence(PRESENCE_INTERVAL_MS);
         }
         return START_STICKY;
     }
@@ -108,6 +257,9 @@ public class SatoriService extends Service {
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "Service Destroyed.");
+        mOutbox.close();
+        mSearchIndex.close();
+        mDecoder.shutdown();
         if (null != mRtmClient) {
             mRtmClient.stop();
             isServiceStarted = false;
@@ -126,6 +278,7 @@ public class SatoriService extends Service {
                     public void onEnterConnected(RtmClient client) {
                         sendEventToUI(buildEventInfo("RTM client is connected"));
                         sendEventToUI(buildEventClientState(true));
+                        mOutbox.flush();
                     }
 
                     @Override
@@ -147,11 +300,15 @@ public class SatoriService extends Service {
                     public void onLeaveConnected(RtmClient client) {
                         sendEventToUI(buildEventInfo("RTM client is disconnected."));
                         sendEventToUI(buildEventClientState(false));
+                        mOutbox.reset();
                     }
                 })
                 .build();
 
         client.start();
+        stats(messageChannelName).onSubscribe();
+        stats(presenceChannelName).onSubscribe();
+        final Set<String> recentIds = ChatInbound.newRecentIds();
         client.createSubscription(messageChannelName, SubscriptionMode.SIMPLE, new SubscriptionAdapter() {
             @Override
             public void onEnterSubscribed(SubscribeRequest request, SubscribeReply reply) {
@@ -165,14 +322,7 @@ public class SatoriService extends Service {
 
             @Override
             public void onSubscriptionData(SubscriptionData subscriptionData) {
-                for (AnyJson json : subscriptionData.getMessages()) {
-                    try {
-                        ChatMessage msg = json.convertToType(ChatMessage.class);
-                        sendEventToUI(buildEventNewChatMessage(msg.user, msg.text));
-                    } catch (Exception ex) {
-                        Log.e(TAG, "Received malformed message: " + json, ex);
-                    }
-                }
+                mInbound.onChatData(subscriptionData.getMessages(), recentIds, stats(messageChannelName), ACCEPT_ALL);
             }
 
             @Override
@@ -194,12 +344,7 @@ public class SatoriService extends Service {
 
             @Override
             public void onSubscriptionData(SubscriptionData channelData) {
-                for (ChatPresence presence : channelData.getMessagesAsType(ChatPresence.class)) {
-                    if (!mUserPresence.containsKey(presence.user)) {
-                        sendEventToUI(buildEventUserJoin(presence.user));
-                    }
-                    mUserPresence.put(presence.user, System.currentTimeMillis());
-                }
+                mInbound.onPresenceData(channelData.getMessages(), stats(presenceChannelName));
             }
 
             @Override
@@ -219,12 +364,57 @@ public class SatoriService extends Service {
             } catch (RemoteException e) {
                 // The client is dead. Remove it from the list; we are going through the list from back to front so this is safe to do inside the loop.
                 mConsumers.remove(i);
+                mInbound.setBackground(mConsumers.isEmpty());
             }
         }
     }
 
-    private Message buildEventNewChatMessage(String nick, String messageText) {
+    private void registerMemoryConsumers() {
+        mMemoryBudget.register("search_index", mSearchIndex, SEARCH_INDEX_BYTES, SEARCH_INDEX_MIN_BYTES);
+        mMemoryBudget.register("hive_cache", mHiveCache, HIVE_CACHE_BYTES, 0);
+        mMemoryBudget.register("roster", mRoster, ROSTER_BYTES, ROSTER_MIN_BYTES);
+        mMemoryBudget.register("decoder", mDecoder, DECODER_BYTES, 0);
+        mMemoryBudget.register("backlog", mInbound, BACKLOG_BYTES, BACKLOG_MIN_BYTES);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMemoryBudget.onTrimMemory(level, System.currentTimeMillis());
+        // The roster may have dropped users
+        onRosterChanged();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mMemoryBudget.onLowMemory(System.currentTimeMillis());
+        onRosterChanged();
+    }
+
+    // Back to live mode: deliver what arrived while no activity was bound in one event. Call with
+    // mInbound locked.
+    private void sendBacklogToUI() {
+        List<ChatMessage> backlog = new ArrayList<ChatMessage>();
+        int unread = mInbound.takeBacklog(backlog);
+        if (backlog.isEmpty()) {
+            return;
+        }
+        ArrayList<String> ids = new ArrayList<String>(backlog.size());
+        ArrayList<String> nicks = new ArrayList<String>(backlog.size());
+        ArrayList<String> texts = new ArrayList<String>(backlog.size());
+        for (ChatMessage msg : backlog) {
+            ids.add(msg.id);
+            nicks.add(msg.user);
+            texts.add(msg.text);
+        }
+        sendEventToUI(buildEventChatBatch(ids, nicks, texts, unread));
+    }
+
+    private Message buildEventNewChatMessage(String id, String nick, String messageText) {
         Bundle b = new Bundle();
+        // Lets the sender match the echo of its own message
+        b.putString("id", id);
         b.putString("nick", nick);
         b.putString("text", messageText);
         Message msg = Message.obtain(null, EVENT_RECEIVE_CHAT_MESSAGE);
@@ -233,6 +423,171 @@ public class SatoriService extends Service {
         return msg;
     }
 
+    private Message buildEventChatBatch(ArrayList<String> ids, ArrayList<String> nicks, ArrayList<String> texts,
+                                        int unread) {
+        Bundle b = new Bundle();
+        b.putStringArrayList("ids", ids);
+        b.putStringArrayList("nicks", nicks);
+        b.putStringArrayList("texts", texts);
+        b.putInt("unread", unread);
+        Message msg = Message.obtain(null, EVENT_RECEIVE_CHAT_BATCH);
+        msg.setData(b);
+        Log.i(TAG, "Send to UI [batch] " + texts.size() + " of " + unread);
+        return msg;
+    }
+
+    private void search(String tag, String query) {
+        mSearchIndex.search(tag, query, SEARCH_RESULTS_LIMIT, new SearchIndex.Callback() {
+            @Override
+            public void onResults(String query, List<ChatMessage> results) {
+                sendEventToUI(buildEventSearchResults(query, results));
+            }
+        });
+    }
+
+    private Message buildEventSearchResults(String query, List<ChatMessage> results) {
+        ArrayList<String> nicks = new ArrayList<String>(results.size());
+        ArrayList<String> texts = new ArrayList<String>(results.size());
+        for (ChatMessage result : results) {
+            nicks.add(result.user);
+            texts.add(result.text);
+        }
+        Bundle b = new Bundle();
+        b.putString("query", query);
+        b.putStringArrayList("nicks", nicks);
+        b.putStringArrayList("texts", texts);
+        Message msg = Message.obtain(null, EVENT_SEARCH_RESULTS);
+        msg.setData(b);
+        Log.i(TAG, "Send to UI [search] " + results.size() + " for " + query);
+        return msg;
+    }
+
+    // Shows the hive right away if its messages are cached, the subscription catches up later
+    private void sendHiveWindowToUI(String tag) {
+        List<ChatMessage> window = mHiveCache.get(tag);
+        if (null == window) {
+            return;
+        }
+        ArrayList<String> ids = new ArrayList<String>(window.size());
+        ArrayList<String> nicks = new ArrayList<String>(window.size());
+        ArrayList<String> texts = new ArrayList<String>(window.size());
+        for (ChatMessage msg : window) {
+            ids.add(msg.id);
+            nicks.add(msg.user);
+            texts.add(msg.text);
+        }
+        Bundle b = new Bundle();
+        b.putString("tag", tag);
+        b.putStringArrayList("ids", ids);
+        b.putStringArrayList("nicks", nicks);
+        b.putStringArrayList("texts", texts);
+        Message msg = Message.obtain(null, EVENT_HIVE_WINDOW);
+        msg.setData(b);
+        Log.i(TAG, "Send to UI [window] " + texts.size() + " of #" + tag);
+        sendEventToUI(msg);
+    }
+
+    // Loads the recent messages of the first chip hives, so entering them is instant too. Each
+    // window is reloaded by a short subscription of its own once it is older than the replay.
+    private void prefetchHives(List<String> tags, long now) {
+        RtmClient client = mRtmClient;
+        SubscriptionChangeMessage subscription = mSubscription;
+        // Nothing would stay cached while memory is short
+        if (null == client || !client.isConnected() || null == subscription || mInbound.isBackground()
+                || 0 == mHiveCache.limit()) {
+            return;
+        }
+        GeoRadius area = areaOf(subscription);
+        for (int i = 0; i < tags.size() && i < PREFETCH_HIVES; i++) {
+            String tag = tags.get(i);
+            if (!tag.equals(subscription.tag) && !mHiveCache.isFresh(tag, now, PREFETCH_REFRESH_MS)
+                    && mPrefetching.add(tag)) {
+                prefetchHive(client, tag, area);
+            }
+        }
+    }
+
+    private void prefetchHive(final RtmClient client, final String tag, final GeoRadius area) {
+        final String subscriptionId = "prefetch_" + tag;
+        SubscriptionConfig config = new SubscriptionConfig(SubscriptionMode.SIMPLE, new SubscriptionAdapter() {
+            @Override
+            public void onEnterSubscribed(SubscribeRequest request, SubscribeReply reply) {
+                // Cached from here on, the replay follows
+                mHiveCache.refresh(tag, System.currentTimeMillis());
+            }
+
+            @Override
+            public void onSubscriptionData(SubscriptionData subscriptionData) {
+                List<ChatMessage> messages = mDecoder.decode(subscriptionData.getMessages(), ChatMessage.class,
+                        stats("prefetch"), new BatchDecoder.Filter<ChatMessage>() {
+                            @Override
+                            public boolean accept(ChatMessage msg) {
+                                return area.contains(msg.lat, msg.lon);
+                            }
+                        });
+                for (ChatMessage msg : messages) {
+                    mHiveCache.addIfCached(msg);
+                }
+            }
+        });
+        config.setFilter("SELECT * FROM chat WHERE tag=" + quote(tag) + " AND " + area.toFilterString());
+        config.setAge(PREFETCH_REFRESH_MS / 1000);
+        client.createSubscription(subscriptionId, config);
+        stats("prefetch").onSubscribe();
+        mMainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.removeSubscription(subscriptionId);
+                } catch (Exception e) {
+                    // eat it for now
+                }
+                // A failed prefetch is retried on a later tick
+                mPrefetching.remove(tag);
+            }
+        }, PREFETCH_TIMEOUT_MS);
+    }
+
+    private GeoRadius areaOf(SubscriptionChangeMessage subscription) {
+        double radius = subscription.radius > 0 ? subscription.radius : getResources().getInteger(R.integer.hive_radius_meters);
+        return new GeoRadius(subscription.lat, subscription.lon, radius);
+    }
+
+    private Message buildEventSendStatus(String id, boolean acked, boolean dropped) {
+        Bundle b = new Bundle();
+        b.putString("id", id);
+        b.putBoolean("acked", acked);
+        b.putBoolean("dropped", dropped);
+        Message msg = Message.obtain(null, EVENT_SEND_STATUS);
+        msg.setData(b);
+        Log.i(TAG, "Send to UI [status] " + id + (acked ? " acked" : dropped ? " dropped" : " failed"));
+        return msg;
+    }
+
+    private Message buildEventTrendingTags(List<String> tags) {
+        Bundle b = new Bundle();
+        b.putStringArrayList("tags", new ArrayList<String>(tags));
+        Message msg = Message.obtain(null, EVENT_TRENDING_TAGS);
+        msg.setData(b);
+        Log.i(TAG, "Send to UI [trending] " + tags);
+        return msg;
+    }
+
+    private Message buildEventSubscribed(String tag) {
+        return buildEventSubscribed(tag, null);
+    }
+
+    // With an error when the subscription to the hive failed
+    private Message buildEventSubscribed(String tag, String error) {
+        Bundle b = new Bundle();
+        b.putString("tag", tag);
+        b.putString("error", error);
+        Message msg = Message.obtain(null, EVENT_SUBSCRIBED);
+        msg.setData(b);
+        Log.i(TAG, "Send to UI [subscribed] " + tag + (null != error ? " failed: " + error : ""));
+        return msg;
+    }
+
     private Message buildEventNewCount(int count) {
         Bundle b = new Bundle();
         b.putInt("count", count);
@@ -242,6 +597,18 @@ public class SatoriService extends Service {
         return msg;
     }
 
+    // Lets a newly bound activity catch up with the hive, roster and user count
+    private void sendCurrentStateToUI() {
+        SubscriptionChangeMessage subscription = mSubscription;
+        if (null != subscription) {
+            sendEventToUI(buildEventSubscribed(subscription.tag));
+        }
+        sendRosterSnapshotToUI();
+        if (0 <= mLastUserCount) {
+            sendEventToUI(buildEventNewCount(mLastUserCount));
+        }
+    }
+
     private Message buildEventClientState() {
         return buildEventClientState(null != mRtmClient && mRtmClient.isConnected());
     }
@@ -256,21 +623,25 @@ public class SatoriService extends Service {
         return msg;
     }
 
-    private Message buildEventUserJoin(String nick) {
+    private Message buildEventRosterSnapshot(Roster.Snapshot snapshot) {
         Bundle b = new Bundle();
-        b.putString("nick", nick);
-        Message msg = Message.obtain(null, EVENT_USER_JOIN);
+        b.putLong("version", snapshot.version);
+        b.putStringArrayList("users", snapshot.users);
+        Message msg = Message.obtain(null, EVENT_ROSTER_SNAPSHOT);
         msg.setData(b);
-        Log.i(TAG, "Send to UI [join] " + nick);
+        Log.i(TAG, "Send to UI [roster] " + snapshot.users.size() + " users at " + snapshot.version);
         return msg;
     }
 
-    private Message buildEventUserLeft(String nick) {
+    private Message buildEventRosterDelta(Roster.Delta delta) {
         Bundle b = new Bundle();
-        b.putString("nick", nick);
-        Message msg = Message.obtain(null, EVENT_USER_LEFT);
+        b.putLong("from_version", delta.fromVersion);
+        b.putLong("version", delta.version);
+        b.putStringArrayList("added", delta.added);
+        b.putStringArrayList("removed", delta.removed);
+        Message msg = Message.obtain(null, EVENT_ROSTER_DELTA);
         msg.setData(b);
-        Log.i(TAG, "Send to UI [left] " + nick);
+        Log.i(TAG, "Send to UI [roster] +" + delta.added.size() + " -" + delta.removed.size() + " at " + delta.version);
         return msg;
     }
 
@@ -283,22 +654,193 @@ public class SatoriService extends Service {
         return msg;
     }
 
+    private synchronized void schedulePresence(long delay) {
+        if (null != mPresenceTask) {
+            mPresenceTask.cancel();
+        }
+        mPresenceTask = new TimerTask() {
+            public void run() {
+                onTimerTick();
+            }
+        };
+        mPresenceTimer.schedule(mPresenceTask, delay);
+    }
+
+    // Picks the time until the next presence message from what the user is doing
+    private long nextPresenceInterval(long now) {
+        int base;
+        if (mInbound.isBackground()) {
+            base = PRESENCE_BACKGROUND_INTERVAL_MS;
+        } else if (IDLE_AFTER_MS < now - mLastUserActivityTime) {
+            base = PRESENCE_IDLE_INTERVAL_MS;
+        } else {
+            base = PRESENCE_INTERVAL_MS;
+        }
+        double jitter = (mRandom.nextDouble() * 2 - 1) * PRESENCE_JITTER;
+        return (long) (base * (1 + jitter));
+    }
+
     private void onTimerTick() {
-        String presenceChannelName = getString(R.string.satori_presence_channel_name);
-        if (null != mRtmClient && mRtmClient.isConnected()) {
-            mRtmClient.publish(presenceChannelName, new ChatPresence(mUsername), Ack.NO);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            long interval = nextPresenceInterval(now);
+            // Receivers in the hive refresh the user on a chat message since the last heartbeat.
+            // Skipping keeps the announced interval, and never happens twice in a row, so the gap
+            // stays below the offline threshold for everyone else.
+            boolean chatted = now - mLastChatPublishTime < mPresenceInterval;
+            if (chatted && !mPresenceSkipped) {
+                mPresenceSkipped = true;
+                interval = Math.min(interval, mPresenceInterval);
+            } else if (null != mRtmClient && mRtmClient.isConnected()) {
+                mPresenceSkipped = false;
+                mPresenceInterval = interval;
+                String presenceChannelName = getString(R.string.satori_presence_channel_name);
+                ChatPresence presence = new ChatPresence(mUsername, interval);
+                mRtmClient.publish(presenceChannelName, presence, Ack.NO);
+                stats(presenceChannelName).onSent(ChannelStats.sizeOf(presence));
+            }
+            schedulePresence(interval);
+        }
+        if (mRoster.expire(now)) {
+            onRosterChanged();
+        }
+        List<String> trending = mTrendingTags.top(TRENDING_TAGS_SHOWN, System.currentTimeMillis());
+        if (!trending.equals(mLastTrendingTags)) {
+            mLastTrendingTags = trending;
+            sendEventToUI(buildEventTrendingTags(trending));
+        }
+        prefetchHives(trending, now);
+        if (mCheckpointDirty) {
+            mCheckpointDirty = false;
+            saveCheckpoint();
+        }
+        if (STATS_SNAPSHOT_INTERVAL_MS <= now - mLastStatsSnapshotTime) {
+            mLastStatsSnapshotTime = now;
+            saveStats();
+        }
+        mMemoryBudget.check(now);
+    }
+
+    // Changes are sent to the UI at most once per ROSTER_DELTA_INTERVAL_MS, coalesced
+    private void onRosterChanged() {
+        mCheckpointDirty = true;
+        if (mRosterFlushScheduled.compareAndSet(false, true)) {
+            mMainHandler.postDelayed(mRosterFlushTask, ROSTER_DELTA_INTERVAL_MS);
+        }
+    }
+
+    // Runs on the main thread, like binding, so consumers see snapshots and deltas in order
+    private void flushRoster() {
+        Roster.Delta delta = mRoster.takeDelta();
+        // In background the changes are dropped, a binding activity gets a snapshot
+        if (null != delta && !mInbound.isBackground()) {
+            sendEventToUI(buildEventRosterDelta(delta));
+        }
+    }
+
+    private void sendRosterSnapshotToUI() {
+        Roster.Snapshot snapshot = mRoster.snapshot();
+        if (null != snapshot.pending) {
+            sendEventToUI(buildEventRosterDelta(snapshot.pending));
+        }
+        sendEventToUI(buildEventRosterSnapshot(snapshot));
+    }
+
+    private ChannelStats stats(String name) {
+        ChannelStats stats = mStats.get(name);
+        if (null == stats) {
+            stats = new ChannelStats(name);
+            ChannelStats existing = mStats.putIfAbsent(name, stats);
+            if (null != existing) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    private void printStats(PrintWriter writer) {
+        ChannelStats.printHeader(writer);
+        for (ChannelStats stats : mStats.values()) {
+            stats.print(writer);
         }
-        for (Iterator<Map.Entry<String, Long>> it = mUserPresence.entrySet().iterator(); it.hasNext(); ) {
-            Map.Entry<String, Long> entry = it.next();
-            long last = entry.getValue();
-            long current = System.currentTimeMillis();
-            if (OFFLINE_USER_THRESHOLD_MS < current - last) {
-                sendEventToUI(buildEventUserLeft(entry.getKey()));
-                it.remove();
+    }
+
+    // Overwrites files/stats.txt with the counters since the service started
+    private void saveStats() {
+        try {
+            PrintWriter writer = new PrintWriter(new File(getFilesDir(), "stats.txt"));
+            try {
+                writer.println("# " + System.currentTimeMillis());
+                printStats(writer);
+                mMemoryBudget.print(writer);
+            } finally {
+                writer.close();
             }
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to write stats", ex);
         }
     }
 
+    // adb shell dumpsys activity service com.satori.android_demo/.SatoriService
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        printStats(writer);
+        mMemoryBudget.print(writer);
+    }
+
+    // Back from idle or background: announce the shorter interval right away
+    private void onUserActivity() {
+        long now = System.currentTimeMillis();
+        boolean wasIdle = IDLE_AFTER_MS < now - mLastUserActivityTime;
+        mLastUserActivityTime = now;
+        synchronized (this) {
+            if (isServiceStarted && (wasIdle || PRESENCE_INTERVAL_MS * (1 + PRESENCE_JITTER) < mPresenceInterval)) {
+                schedulePresence(0);
+            }
+        }
+    }
+
+    private void saveCheckpoint() {
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.savedAt = System.currentTimeMillis();
+        checkpoint.subscription = mSubscription;
+        checkpoint.userCount = mLastUserCount;
+        checkpoint.positions.putAll(mPositions);
+        checkpoint.roster.addAll(mRoster.users());
+        try {
+            checkpoint.write(new File(getFilesDir(), "checkpoint.bin"));
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to write checkpoint", ex);
+        }
+    }
+
+    // Brings back the state of the previous process so the UI has something to show before the
+    // client reconnects. Restored users expire like any other user if they are really gone.
+    private void restoreCheckpoint() {
+        Checkpoint checkpoint;
+        try {
+            checkpoint = Checkpoint.read(new File(getFilesDir(), "checkpoint.bin"));
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to read checkpoint", ex);
+            return;
+        }
+        if (null == checkpoint) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (String user : checkpoint.roster) {
+            mRoster.touch(user, now + OFFLINE_USER_THRESHOLD_MS);
+        }
+        mPositions.putAll(checkpoint.positions);
+        mLastUserCount = checkpoint.userCount;
+        mSubscription = checkpoint.subscription;
+        if (null != mSubscription) {
+            mInbound.setHive(mSubscription.tag);
+        }
+        mResumePosition = checkpoint.positions.get("chat");
+        Log.i(TAG, "Restored checkpoint from " + checkpoint.savedAt);
+    }
+
     private String getUserName() {
         Cursor c = null;
         try {
@@ -318,12 +860,15 @@ public class SatoriService extends Service {
 
     static class ChatPresence {
         String user;
+        // Milliseconds until the sender's next presence message
+        long interval;
 
         ChatPresence() {
         }
 
-        ChatPresence(String user) {
+        ChatPresence(String user, long interval) {
             this.user = user;
+            this.interval = interval;
         }
     }
 
@@ -343,20 +888,49 @@ public class SatoriService extends Service {
             }
             switch (event.what) {
                 case EVENT_BIND_ACTIVITY:
-                    service.mConsumers.add(event.replyTo);
-                    service.sendEventToUI(service.buildEventClientState());
+                    // Under the lock live messages are handed over with, so they follow the backlog
+                    synchronized (service.mInbound) {
+                        service.mConsumers.add(event.replyTo);
+                        service.mInbound.setBackground(false);
+                        service.onUserActivity();
+                        service.sendEventToUI(service.buildEventClientState());
+                        service.sendEventToUI(service.buildEventTrendingTags(service.mLastTrendingTags));
+                        service.sendCurrentStateToUI();
+                        service.sendBacklogToUI();
+                    }
                     break;
                 case EVENT_UNBIND_ACTIVITY:
-                    service.mConsumers.remove(event.replyTo);
+                    synchronized (service.mInbound) {
+                        service.mConsumers.remove(event.replyTo);
+                        service.mInbound.setBackground(service.mConsumers.isEmpty());
+                    }
                     break;
                 case EVENT_SEND_TEXT:
-                    String channelName = service.getString(R.string.satori_message_channel_name);
                     ChatMessage message = (ChatMessage) event.obj;
-                    service.mRtmClient.publish(channelName, message, Ack.NO);
+                    service.mOutbox.enqueue(message);
+                    service.onUserActivity();
+                    break;
+                case EVENT_REQUEST_ROSTER:
+                    service.sendRosterSnapshotToUI();
+                    break;
+                case EVENT_SEARCH:
+                    Bundle query = event.getData();
+                    service.search(query.getString("tag"), query.getString("query"));
                     break;
                 case EVENT_CHANGE_SUBSCRIPTION:
                     SubscriptionChangeMessage subMessage = (SubscriptionChangeMessage) event.obj;
+                    SubscriptionChangeMessage current = service.mSubscription;
+                    // A hive switch (it carries the announcement) clears the UI even when the
+                    // service is in that hive already, and the replay then drops the cached
+                    // messages as repeats, so the cache has to refill it
+                    if (null != subMessage.tag && (null == current || !subMessage.tag.equals(current.tag)
+                            || null != subMessage.announcement)) {
+                        service.sendHiveWindowToUI(subMessage.tag);
+                    }
                     service.setSubscription(subMessage);
+                    if (null != subMessage.announcement) {
+                        service.onUserActivity();
+                    }
                     break;
                 default:
                     super.handleMessage(event);
@@ -370,20 +944,42 @@ public class SatoriService extends Service {
         @Override
         protected Void doInBackground(Void... voids) {
             mRtmClient = createRtmClient();
+            // Resume the hive of the previous process
+            SubscriptionChangeMessage subscription = mSubscription;
+            if (null != subscription) {
+                setSubscription(subscription);
+            }
             return null;
         }
     }
 
-    private void setSubscription(SubscriptionChangeMessage message){
+    private void setSubscription(final SubscriptionChangeMessage message){
 
         String filterString = "";
         String userFilterString = "";
         if(message.tag != null){
-            filterString = "SELECT * FROM chat WHERE tag=\""+message.tag+"\"";
-            userFilterString = "SELECT COUNT(*) as count FROM chat WHERE tag=\""+message.tag+"\"";
+            filterString = "SELECT * FROM chat WHERE tag=" + quote(message.tag);
+            userFilterString = "SELECT COUNT(*) as count FROM chat WHERE tag=" + quote(message.tag);
+
+        }
+
+        // A location update may replace the subscription before it is up, so keep the
+        // announcement until some subscription to the hive succeeds
+        if (null != message.announcement) {
+            mPendingAnnouncement = message.announcement;
+        }
+
+        mSubscription = message;
+        mInbound.setHive(message.tag);
+        mCheckpointDirty = true;
 
+        // Subscribed once the client is created
+        if (null == mRtmClient) {
+            return;
         }
 
+        final GeoRadius area = areaOf(message);
+
         if(!filterString.equals("")){
             mRtmClient.removeSubscription("chat");
 
@@ -393,10 +989,23 @@ public class SatoriService extends Service {
                 // eat it for now
             }
 
+            final Set<String> recentIds = ChatInbound.newRecentIds();
+            // The replay repeats what the cache already showed
+            List<ChatMessage> cached = mHiveCache.get(message.tag);
+            if (null != cached) {
+                for (ChatMessage msg : cached) {
+                    if (null != msg.id) {
+                        recentIds.add(msg.id);
+                    }
+                }
+            }
+            // Only the first subscription after a restart continues where the old process left off
+            final String resumePosition = mResumePosition;
+            mResumePosition = null;
             SubscriptionConfig config = new SubscriptionConfig(SubscriptionMode.SIMPLE, new SubscriptionAdapter() {
                 @Override
                 public void onEnterSubscribed(SubscribeRequest request, SubscribeReply reply) {
-                 //   sendEventToUI(buildEventInfo("RTM client is subscribed to " + reply.getSubscriptionId()));
+                    onChatSubscribed(message);
                 }
 
                 @Override
@@ -406,13 +1015,18 @@ public class SatoriService extends Service {
 
                 @Override
                 public void onSubscriptionData(SubscriptionData subscriptionData) {
-                    for (AnyJson json : subscriptionData.getMessages()) {
-                        try {
-                            ChatMessage msg = json.convertToType(ChatMessage.class);
-                            sendEventToUI(buildEventNewChatMessage(msg.user, msg.text));
-                        } catch (Exception ex) {
-                            Log.e(TAG, "Received malformed message: " + json, ex);
-                        }
+                    // The history after subscribing comes in one large batch, decoded in parallel
+                    mInbound.onChatData(subscriptionData.getMessages(), recentIds, stats("chat"),
+                            new BatchDecoder.Filter<ChatMessage>() {
+                                @Override
+                                public boolean accept(ChatMessage msg) {
+                                    // The server filter is a bounding box, drop the messages from its corners
+                                    return area.contains(msg.lat, msg.lon);
+                                }
+                            });
+                    if (null != subscriptionData.getPosition()) {
+                        mPositions.put("chat", subscriptionData.getPosition());
+                        mCheckpointDirty = true;
                     }
                 }
 
@@ -420,23 +1034,37 @@ public class SatoriService extends Service {
                 public void onSubscriptionError(SubscriptionError error) {
                     String msg = String.format("RTM subscription failed: %s (%s)", error.getError(), error.getReason());
                     sendEventToUI(buildEventInfo(msg));
+                    if (message != mSubscription) {
+                        return;
+                    }
+                    // The saved position may have expired, fall back to the recent history
+                    if (null != resumePosition) {
+                        setSubscription(message);
+                    } else {
+                        sendEventToUI(buildEventSubscribed(message.tag, msg));
+                    }
                 }
             });
 
 
             if(!filterString.equals("")){
-                filterString = filterString + " AND " + getLocationFilterString(message.lat, message.lon);
-                userFilterString = userFilterString + " AND "+ getLocationFilterString(message.lat, message.lon);
+                filterString = filterString + " AND " + area.toFilterString();
+                userFilterString = userFilterString + " AND "+ area.toFilterString();
             }else{
-                filterString = "SELECT * from chat WHERE "+getLocationFilterString(message.lat, message.lon);
-                userFilterString = "SELECT COUNT(*) as count FROM chat WHERE "+getLocationFilterString(message.lat, message.lon);
+                filterString = "SELECT * from chat WHERE "+area.toFilterString();
+                userFilterString = "SELECT COUNT(*) as count FROM chat WHERE "+area.toFilterString();
 
             }
 
             config.setFilter(filterString);
-            config.setAge(60);
+            if (null != resumePosition) {
+                config.setPosition(resumePosition);
+            } else {
+                config.setAge(60);
+            }
 
             mRtmClient.createSubscription("chat", config);
+            stats("chat").onSubscribe();
 
             SubscriptionConfig userNumberConfig = new SubscriptionConfig(SubscriptionMode.SIMPLE, new SubscriptionAdapter() {
                 @Override
@@ -451,12 +1079,20 @@ public class SatoriService extends Service {
 
                 @Override
                 public void onSubscriptionData(SubscriptionData subscriptionData) {
+                    ChannelStats stats = stats("user_count");
                     for (AnyJson json : subscriptionData.getMessages()) {
+                        long start = System.nanoTime();
                         try {
                             CountMessage countMsg = json.convertToType(CountMessage.class);
-                            sendEventToUI(buildEventNewCount(countMsg.count));
+                            stats.onReceived(ChannelStats.sizeOf(countMsg), System.nanoTime() - start);
+                            mLastUserCount = countMsg.count;
+                            mCheckpointDirty = true;
+                            if (!mInbound.isBackground()) {
+                                sendEventToUI(buildEventNewCount(countMsg.count));
+                            }
 
                         } catch (Exception ex) {
+                            stats.onMalformed(System.nanoTime() - start);
                             Log.e(TAG, "Received malformed message: " + json, ex);
                         }
                     }
@@ -473,23 +1109,71 @@ public class SatoriService extends Service {
             //userNumberConfig.setPeriod(60);
 
             mRtmClient.createSubscription("user_count", userNumberConfig);
-        }
-    }
+            stats("user_count").onSubscribe();
 
-    private String getLocationFilterString(double lat, double lon){
-        double latitude = lat;
-        double longitude = lon;
-        double range = 50;
-        double r_earth = 6371000.00;
+            // Only the tag of every nearby message is needed to rank hives, regardless of the
+            // hive the user is currently in
+            try {
+                mRtmClient.removeSubscription("hive_tags");
+            } catch (Exception e) {
+                // eat it for now
+            }
 
-        double latTR  = latitude + (range / r_earth) * (180 / Math.PI);
-        double lonTR = longitude + (range / r_earth ) * (180 / Math.PI) / Math.cos(latitude * Math.PI/180);
+            SubscriptionConfig hiveTagsConfig = new SubscriptionConfig(SubscriptionMode.SIMPLE, new SubscriptionAdapter() {
+                @Override
+                public void onSubscriptionData(SubscriptionData subscriptionData) {
+                    // The ranking is only shown by the UI
+                    if (mInbound.isBackground()) {
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    ChannelStats stats = stats("hive_tags");
+                    for (AnyJson json : subscriptionData.getMessages()) {
+                        long start = System.nanoTime();
+                        try {
+                            ChatMessage msg = json.convertToType(ChatMessage.class);
+                            stats.onReceived(ChannelStats.sizeOf(msg), System.nanoTime() - start);
+                            if (area.contains(msg.lat, msg.lon)) {
+                                mTrendingTags.offer(msg.tag, now);
+                            }
+                        } catch (Exception ex) {
+                            stats.onMalformed(System.nanoTime() - start);
+                            Log.e(TAG, "Received malformed message: " + json, ex);
+                        }
+                    }
+                }
 
-        double latBL = latitude - (range / r_earth) * (180 / Math.PI);
-        double lonBL = longitude - (range / r_earth ) * (180 / Math.PI) / Math.cos(latitude * Math.PI/180);
-        String filterString = "lat > "+Double.toString(latBL)+ " AND lat < "+Double.toString(latTR) + " AND lon > " + Double.toString(lonBL) + "AND lon < "+Double.toString(lonTR);
+                @Override
+                public void onSubscriptionError(SubscriptionError error) {
+                    String msg = String.format("RTM subscription failed: %s (%s)", error.getError(), error.getReason());
+                    sendEventToUI(buildEventInfo(msg));
+                }
+            });
+            hiveTagsConfig.setFilter("SELECT tag, lat, lon FROM chat WHERE " + area.toFilterString());
+
+            mRtmClient.createSubscription("hive_tags", hiveTagsConfig);
+            stats("hive_tags").onSubscribe();
+        }
+    }
+
+    // The hive is ready: announce the user (if asked to) and let the UI switch over
+    private void onChatSubscribed(SubscriptionChangeMessage message) {
+        ChatMessage announcement = mPendingAnnouncement;
+        if (null != announcement && announcement.tag.equals(message.tag)) {
+            mPendingAnnouncement = null;
+            // Lets the replay after switching back to this hive drop the cached copy
+            if (null == announcement.id) {
+                announcement.id = UUID.randomUUID().toString();
+            }
+            String channelName = getString(R.string.satori_message_channel_name);
+            mRtmClient.publish(channelName, announcement, Ack.NO);
+            stats(channelName).onSent(ChannelStats.sizeOf(announcement));
+        }
+        sendEventToUI(buildEventSubscribed(message.tag));
+    }
 
-        return filterString;
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
     }
 
 }
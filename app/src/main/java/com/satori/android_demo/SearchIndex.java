@@ -0,0 +1,380 @@
+package com.satori.android_demo;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Chat history on disk with an in-memory inverted index for full-text search.
+ * <p>
+ * Received messages are appended to a history log and indexed incrementally by a
+ * {@link TermIndex} on a background thread. A record is encoded in full before it is appended,
+ * and cut off again if the write fails, so the log never holds a torn record followed by good
+ * ones. Longer fields are clipped to {@link ChatMessage#MAX_FIELD_LENGTH}. On start the index is
+ * rebuilt from the log.
+ * <p>
+ * When the index outgrows its memory limit, the older half of the indexed messages is dropped
+ * from memory only; the log keeps them. Once the limit is raised again, the next search rebuilds
+ * the full index from the log. Independently of memory, the log is bounded on disk: past
+ * {@value #MAX_LOG_BYTES} bytes its older half is deleted.
+ * <p>
+ * The index thread is a plain executor rather than a HandlerThread, so the inbound path that
+ * feeds it can be measured on the JVM.
+ */
+class SearchIndex implements MemoryBudget.Consumer {
+    private static final String TAG = "SearchIndex";
+    private static final long MAX_LOG_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Receives search results on the index thread, newest message first.
+     */
+    interface Callback {
+        void onResults(String query, List<ChatMessage> results);
+    }
+
+    private final File mFile;
+    private final ExecutorService mExecutor;
+    // Everything below is accessed on the index thread only
+    private final TermIndex mTerms = new TermIndex();
+    // Log offsets of the indexed messages, by message number
+    private long[] mOffsets = new long[1024];
+    private int mCount;
+    // Whether older messages were dropped from the index, and under which limit
+    private boolean mPartial;
+    private long mPartialLimit;
+    // Length of the log up to the last complete record
+    private long mEnd;
+    private DataOutputStream mOut;
+    private RandomAccessFile mReader;
+    // Raised for good if trimming the log fails, rather than retrying on every message
+    private long mMaxLogBytes = MAX_LOG_BYTES;
+    // Estimated heap size of the offsets and the terms, written on the index thread only
+    private volatile long mBytes;
+    private volatile long mLimit = Long.MAX_VALUE;
+
+    SearchIndex(File file) {
+        this.mFile = file;
+        this.mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "search-index");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the index from the history log.
+     */
+    void open() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        });
+    }
+
+    void close() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                closeStreams();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public long bytes() {
+        return mBytes;
+    }
+
+    @Override
+    public void setLimit(final long maxBytes) {
+        mLimit = maxBytes;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                shrink();
+            }
+        });
+    }
+
+    void add(final ChatMessage message) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                append(message);
+            }
+        });
+    }
+
+    /**
+     * Finds up to {@code limit} messages of the hive that contain all the words of the query.
+     * The last word also matches as a prefix, so results can follow the user's typing.
+     */
+    void search(final String tag, final String query, final int limit, final Callback callback) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResults(query, find(tag, query, limit));
+            }
+        });
+    }
+
+    // Like Handler.post, drops the task once closed
+    private void post(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // Closed
+        }
+    }
+
+    private void append(ChatMessage message) {
+        ChatMessage record = new ChatMessage();
+        record.tag = ChatMessage.clip(message.tag);
+        record.user = ChatMessage.clip(message.user);
+        record.text = ChatMessage.clip(message.text);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeRecord(new DataOutputStream(bytes), record);
+            if (null == mOut) {
+                mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            }
+            bytes.writeTo(mOut);
+            // Readers go to the file directly
+            mOut.flush();
+            index(record, mEnd);
+            mEnd += bytes.size();
+            if (mLimit < mBytes) {
+                shrink();
+            }
+            if (mMaxLogBytes < mEnd) {
+                trimLog();
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to write history", ex);
+            closeStreams();
+            truncate(mEnd);
+        }
+    }
+
+    private void index(ChatMessage message, long offset) {
+        long offsetBytes = 8L * mOffsets.length;
+        if (mCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            offsetBytes = 8L * mOffsets.length;
+        }
+        int id = mCount++;
+        mOffsets[id] = offset;
+        mTerms.add(id, message.tag, message.text);
+        mBytes = offsetBytes + mTerms.bytes();
+    }
+
+    private List<ChatMessage> find(String tag, String query, int limit) {
+        if (mPartial && mPartialLimit < mLimit) {
+            rebuild();
+        }
+        List<ChatMessage> results = new ArrayList<ChatMessage>();
+        BitSet matches = mTerms.find(tag, query);
+        if (matches.isEmpty()) {
+            return results;
+        }
+
+        // Newest first: collect the ids and read the last ones back from the log
+        int[] ids = new int[matches.cardinality()];
+        int n = 0;
+        for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+            ids[n++] = id;
+        }
+        try {
+            if (null == mReader) {
+                mReader = new RandomAccessFile(mFile, "r");
+            }
+            for (int i = n - 1; i >= 0 && results.size() < limit; i--) {
+                mReader.seek(mOffsets[ids[i]]);
+                results.add(readRecord(mReader));
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to read history", ex);
+        }
+        return results;
+    }
+
+    private void replay() {
+        if (!mFile.exists()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        DataInputStream in = null;
+        long offset = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            while (true) {
+                ChatMessage message = readRecord(in);
+                index(message, offset);
+                offset += recordSize(message);
+                if (mLimit < mBytes) {
+                    shrink();
+                }
+            }
+        } catch (EOFException ex) {
+            // End of log, or a record torn by a crash
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to read history", ex);
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        // Drop a torn record so new ones are appended right after the last good one
+        truncate(offset);
+        mEnd = offset;
+        Log.i(TAG, "Indexed " + mCount + " messages in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Drops the older half of the indexed messages until the index fits its limit
+    private void shrink() {
+        while (mLimit < mBytes && 0 < mCount) {
+            int first = Math.max(1, mCount / 2);
+            mTerms.retainFrom(first);
+            mOffsets = Arrays.copyOfRange(mOffsets, first, first + Math.max(1024, mCount - first));
+            mCount -= first;
+            mBytes = 8L * mOffsets.length + mTerms.bytes();
+            mPartial = true;
+            mPartialLimit = mLimit;
+        }
+    }
+
+    private void rebuild() {
+        mTerms.clear();
+        mOffsets = new long[1024];
+        mCount = 0;
+        mBytes = 0;
+        mPartial = false;
+        replay();
+    }
+
+    // Deletes the older half of the log and indexes the rest again
+    private void trimLog() {
+        long start = mEnd - mMaxLogBytes / 2;
+        closeStreams();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                // Skip to the first record boundary past the cut
+                long offset = 0;
+                while (offset < start) {
+                    offset += recordSize(readRecord(in));
+                }
+                byte[] buffer = new byte[8192];
+                int n;
+                while (0 < (n = in.read(buffer))) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Cannot replace " + mFile);
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to trim history", ex);
+            tmp.delete();
+            mMaxLogBytes = Long.MAX_VALUE;
+        }
+        rebuild();
+    }
+
+    private void closeStreams() {
+        try {
+            if (null != mOut) {
+                mOut.close();
+            }
+            if (null != mReader) {
+                mReader.close();
+            }
+        } catch (IOException ignored) {
+        }
+        mOut = null;
+        mReader = null;
+    }
+
+    private void truncate(long length) {
+        if (mFile.length() <= length) {
+            return;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to truncate history", ex);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, ChatMessage message) throws IOException {
+        out.writeUTF(null != message.tag ? message.tag : "");
+        out.writeUTF(null != message.user ? message.user : "");
+        out.writeUTF(null != message.text ? message.text : "");
+    }
+
+    private static ChatMessage readRecord(DataInput in) throws IOException {
+        ChatMessage message = new ChatMessage();
+        message.tag = in.readUTF();
+        message.user = in.readUTF();
+        message.text = in.readUTF();
+        return message;
+    }
+
+    private static int recordSize(ChatMessage message) {
+        return utfSize(message.tag) + utfSize(message.user) + utfSize(message.text);
+    }
+
+    // Size of the value as written by DataOutput.writeUTF
+    private static int utfSize(String value) {
+        int size = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                size += 1;
+            } else if (c > 0x07FF) {
+                size += 3;
+            } else {
+                size += 2;
+            }
+        }
+        return size;
+    }
+}
@@ -12,7 +12,11 @@ public class SubscriptionChangeMessage {
     public String tag;
     public double lat;
     public double lon;
+    // Hive radius in meters, the default from resources is used when not set
+    public double radius;
     public boolean showChannelUpdate;
+    // Published to the hive as soon as the new subscription is established
+    public ChatMessage announcement;
 
     public SubscriptionChangeMessage(String tag, Location loc){
         this.tag = tag;
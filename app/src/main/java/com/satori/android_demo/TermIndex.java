@@ -0,0 +1,230 @@
+package com.satori.android_demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Inverted index of message texts, per hive tag (matched exactly, case included).
+ * <p>
+ * Messages are numbered in the order they are added. Each term maps to a posting list of message
+ * numbers, stored as delta-encoded varints (a byte or two per posting), so hundreds of thousands
+ * of messages fit in a few megabytes. Terms are kept sorted, which makes prefix queries a range
+ * scan.
+ * <p>
+ * Not thread-safe.
+ */
+class TermIndex {
+    // Estimated heap size of a term in the dictionary besides its characters
+    private static final int TERM_OVERHEAD = 80;
+
+    private final Map<String, TreeMap<String, PostingList>> mTags = new HashMap<String, TreeMap<String, PostingList>>();
+    private long mBytes;
+
+    /**
+     * Indexes the text under the message number, which must be greater than those added before.
+     */
+    void add(int id, String tag, String text) {
+        TreeMap<String, PostingList> terms = mTags.get(tagKey(tag));
+        if (null == terms) {
+            terms = new TreeMap<String, PostingList>();
+            mTags.put(tagKey(tag), terms);
+        }
+        for (String term : tokenize(text)) {
+            PostingList postings = terms.get(term);
+            if (null == postings) {
+                postings = new PostingList();
+                terms.put(term, postings);
+                mBytes += TERM_OVERHEAD + 2 * term.length();
+            }
+            mBytes += postings.add(id);
+        }
+    }
+
+    /**
+     * Returns the numbers of the hive's messages that contain all the words of the query, the
+     * last word also matching as a prefix.
+     */
+    BitSet find(String tag, String query) {
+        TreeMap<String, PostingList> terms = mTags.get(tagKey(tag));
+        List<String> words = tokenize(query);
+        BitSet matches = new BitSet();
+        if (null == terms || words.isEmpty()) {
+            return matches;
+        }
+
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            BitSet docs = new BitSet();
+            if (i == words.size() - 1) {
+                SortedMap<String, PostingList> range = terms.subMap(word, word + Character.MAX_VALUE);
+                for (PostingList postings : range.values()) {
+                    postings.addTo(docs);
+                }
+            } else {
+                PostingList postings = terms.get(word);
+                if (null != postings) {
+                    postings.addTo(docs);
+                }
+            }
+            if (0 == i) {
+                matches = docs;
+            } else {
+                matches.and(docs);
+            }
+            if (matches.isEmpty()) {
+                break;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the estimated heap size of the index.
+     */
+    long bytes() {
+        return mBytes;
+    }
+
+    void clear() {
+        mTags.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Drops the messages numbered below {@code first} and numbers the rest from 0.
+     */
+    void retainFrom(int first) {
+        mBytes = 0;
+        for (Iterator<TreeMap<String, PostingList>> tags = mTags.values().iterator(); tags.hasNext(); ) {
+            TreeMap<String, PostingList> terms = tags.next();
+            for (Iterator<Map.Entry<String, PostingList>> it = terms.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, PostingList> entry = it.next();
+                PostingList kept = entry.getValue().retainFrom(first);
+                if (null == kept) {
+                    it.remove();
+                } else {
+                    entry.setValue(kept);
+                    mBytes += TERM_OVERHEAD + 2 * entry.getKey().length() + kept.grownBytes();
+                }
+            }
+            if (terms.isEmpty()) {
+                tags.remove();
+            }
+        }
+    }
+
+    // Hives match their tag exactly, like the subscription filter does
+    private static String tagKey(String tag) {
+        return null != tag ? tag : "";
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        if (null == text) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && 0 <= start) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.US));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Increasing message numbers stored as varint-encoded gaps.
+     */
+    static class PostingList {
+        // Counted in the term overhead
+        private static final int INITIAL_CAPACITY = 4;
+
+        private byte[] mBytes = new byte[INITIAL_CAPACITY];
+        private int mLength;
+        private int mLast = -1;
+
+        /**
+         * Adds the message number, returns the bytes allocated for it.
+         */
+        int add(int id) {
+            // A word repeated in one message is posted once
+            if (id == mLast) {
+                return 0;
+            }
+            int gap = id - mLast;
+            mLast = id;
+            int grown = 0;
+            if (mBytes.length < mLength + 5) {
+                grown = mBytes.length;
+                mBytes = Arrays.copyOf(mBytes, mBytes.length * 2);
+            }
+            while ((gap & ~0x7F) != 0) {
+                mBytes[mLength++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            mBytes[mLength++] = (byte) gap;
+            return grown;
+        }
+
+        void addTo(BitSet docs) {
+            int id = -1;
+            int i = 0;
+            while (i < mLength) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = mBytes[i++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                id += gap;
+                docs.set(id);
+            }
+        }
+
+        /**
+         * Returns a list of the numbers from {@code first} on, less {@code first}, or
+         * {@code null} if there are none.
+         */
+        PostingList retainFrom(int first) {
+            if (mLast < first) {
+                return null;
+            }
+            PostingList kept = new PostingList();
+            int id = -1;
+            int i = 0;
+            while (i < mLength) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = mBytes[i++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                id += gap;
+                if (first <= id) {
+                    kept.add(id - first);
+                }
+            }
+            return kept;
+        }
+
+        int grownBytes() {
+            return mBytes.length - INITIAL_CAPACITY;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.satori.android_demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded-memory tracker of the most active hive tags.
+ * <p>
+ * Uses the Space-Saving heavy-hitters algorithm over a fixed number of counters, so memory and
+ * per-message cost do not depend on how many distinct tags are seen. Counts decay exponentially
+ * with the configured half-life (forward decay: newer hits get larger weights instead of every
+ * counter being aged on each tick), so a hive that was busy an hour ago drops out of the list.
+ * <p>
+ * Spellings of a tag that differ only in case or surrounding spaces are counted together. Hive
+ * filters match the tag exactly, so the list reports the spelling seen most recently.
+ * <p>
+ * All methods are thread-safe.
+ */
+class TrendingTags {
+    // Rescale the weights before they overflow a double.
+    private static final double MAX_WEIGHT = 1e100;
+    // Tags whose decayed count is below this (less than one message per half-life) are stale.
+    private static final double MIN_COUNT = 0.5;
+
+    private final int mCapacity;
+    private final double mDecayPerMs;
+    private final Map<String, Counter> mCounters;
+    private long mLandmark;
+
+    TrendingTags(int capacity, long halfLifeMs) {
+        this.mCapacity = capacity;
+        this.mDecayPerMs = Math.log(2) / halfLifeMs;
+        this.mCounters = new HashMap<String, Counter>(capacity * 2);
+        this.mLandmark = System.currentTimeMillis();
+    }
+
+    /**
+     * Counts one message posted to the tag. Empty tags (the lobby) are ignored.
+     */
+    synchronized void offer(String tag, long now) {
+        if (null == tag) {
+            return;
+        }
+        String key = tag.trim().toLowerCase(Locale.US);
+        if (key.isEmpty()) {
+            return;
+        }
+
+        double weight = weight(now);
+        if (MAX_WEIGHT < weight) {
+            rescale(now);
+            weight = weight(now);
+        }
+
+        Counter counter = mCounters.get(key);
+        if (null != counter) {
+            counter.count += weight;
+            counter.tag = tag;
+            return;
+        }
+        if (mCounters.size() < mCapacity) {
+            mCounters.put(key, new Counter(key, tag, weight, 0));
+            return;
+        }
+
+        // Table is full: the new tag takes over the smallest counter and inherits its count as
+        // the overestimation error.
+        Counter min = null;
+        for (Counter c : mCounters.values()) {
+            if (null == min || c.count < min.count) {
+                min = c;
+            }
+        }
+        mCounters.remove(min.key);
+        mCounters.put(key, new Counter(key, tag, min.count + weight, min.count));
+    }
+
+    /**
+     * Returns up to {@code k} non-stale tags ordered from the most to the least active.
+     */
+    synchronized List<String> top(int k, long now) {
+        Counter[] counters = mCounters.values().toArray(new Counter[mCounters.size()]);
+        Arrays.sort(counters, new Comparator<Counter>() {
+            @Override
+            public int compare(Counter a, Counter b) {
+                return Double.compare(b.count - b.error, a.count - a.error);
+            }
+        });
+        double threshold = MIN_COUNT * weight(now);
+        List<String> result = new ArrayList<String>(k);
+        for (int i = 0; i < counters.length && result.size() < k; i++) {
+            if (threshold <= counters[i].count - counters[i].error) {
+                result.add(counters[i].tag);
+            }
+        }
+        return result;
+    }
+
+    private double weight(long now) {
+        return Math.exp(mDecayPerMs * (now - mLandmark));
+    }
+
+    private void rescale(long now) {
+        double factor = 1 / weight(now);
+        for (Counter c : mCounters.values()) {
+            c.count *= factor;
+            c.error *= factor;
+        }
+        mLandmark = now;
+    }
+
+    private static class Counter {
+        final String key;
+        // Latest spelling, as published
+        String tag;
+        double count;
+        double error;
+
+        Counter(String key, String tag, double count, double error) {
+            this.key = key;
+            this.tag = tag;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
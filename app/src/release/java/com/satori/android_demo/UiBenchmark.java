@@ -0,0 +1,19 @@
+package com.satori.android_demo;
+
+import android.os.Handler;
+
+/**
+ * Release builds do not ship the UI benchmark; the real one is in the debug source set.
+ */
+class UiBenchmark {
+    static final String EXTRA = "ui_benchmark";
+
+    UiBenchmark(Handler target) {
+    }
+
+    void start() {
+    }
+
+    void stop() {
+    }
+}
@@ -0,0 +1,241 @@
+package com.satori.android_demo;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.satori.rtm.model.AnyJson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Bytes allocated per received message on the inbound path of each subscription, checked
+ * against a budget so regressions fail the build before they turn into GC pauses on a device.
+ * <p>
+ * Chat and presence go through {@link ChatInbound}, the code the service runs: decoding the SDK's
+ * JSON the way the SDK hands it over, dropping duplicates, the search index, hive cache, roster
+ * and backlog. Only what the calling thread allocates counts, the search index writes on its own
+ * thread. Wrapping a message into a UI event needs the Android runtime and is not measured.
+ */
+public class InboundAllocationTest {
+    // Bytes per received message. Converting a parsed message with Gson alone takes about 3 KB
+    // (the count budget is mostly that), the rest is what this app adds on top.
+    private static final int CHAT_BUDGET = 5120;
+    private static final int CHAT_BACKLOG_BUDGET = 5120;
+    private static final int PRESENCE_BUDGET = 4608;
+    private static final int COUNT_BUDGET = 4096;
+    private static final int TAG_BUDGET = 4608;
+
+    private static final int MESSAGES = 20000;
+    // Live traffic size, decoded inline on the measuring thread
+    private static final int BATCH_SIZE = 16;
+    private static final int USERS = 200;
+
+    private static final BatchDecoder.Filter<ChatMessage> ACCEPT_ALL = new BatchDecoder.Filter<ChatMessage>() {
+        @Override
+        public boolean accept(ChatMessage message) {
+            return true;
+        }
+    };
+
+    private static final ChatInbound.Listener IGNORE = new ChatInbound.Listener() {
+        @Override
+        public void onChatMessage(ChatMessage message) {
+        }
+
+        @Override
+        public void onRosterChanged() {
+        }
+    };
+
+    private com.sun.management.ThreadMXBean mThreads;
+    private BatchDecoder mDecoder;
+    private SearchIndex mSearchIndex;
+    private File mHistory;
+    private Roster mRoster;
+    private ChatInbound mInbound;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+        mDecoder = new BatchDecoder(1);
+        mHistory = File.createTempFile("history", ".log");
+        mSearchIndex = new SearchIndex(mHistory);
+        mRoster = new Roster();
+        mInbound = new ChatInbound(mDecoder, mSearchIndex, new HiveCache(100, 256 * 1024), mRoster, 15000, IGNORE);
+        mInbound.setHive("hiking");
+    }
+
+    @After
+    public void tearDown() {
+        if (null != mDecoder) {
+            mDecoder.shutdown();
+            mSearchIndex.close();
+            mHistory.delete();
+        }
+    }
+
+    @Test
+    public void chatStaysWithinBudget() {
+        mInbound.setBackground(false);
+        assertChatWithinBudget("chat", CHAT_BUDGET);
+    }
+
+    @Test
+    public void chatBacklogStaysWithinBudget() {
+        mInbound.setBackground(true);
+        assertChatWithinBudget("chat backlog", CHAT_BACKLOG_BUDGET);
+    }
+
+    private void assertChatWithinBudget(String name, int budget) {
+        final List<List<AnyJson>> batches = batches(new Payload() {
+            @Override
+            public String json(int i) {
+                return String.format(Locale.US, "{\"id\":\"%08d-4f6e-4b43-9d1a-2c8e5b7a9f10\",\"user\":\"bee%d\","
+                        + "\"text\":\"buzz buzz message number %d from the hive\",\"lat\":37.77%d,\"lon\":-122.41%d,"
+                        + "\"tag\":\"hiking\"}", i, i % USERS, i, i % 10, i % 10);
+            }
+        });
+        final ChannelStats stats = new ChannelStats("chat");
+        assertWithinBudget(name, budget, new Runnable() {
+            @Override
+            public void run() {
+                // A subscription per run, so the second run is not all duplicates
+                Set<String> recentIds = ChatInbound.newRecentIds();
+                for (List<AnyJson> batch : batches) {
+                    mInbound.onChatData(batch, recentIds, stats, ACCEPT_ALL);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void presenceStaysWithinBudget() {
+        final List<List<AnyJson>> batches = batches(new Payload() {
+            @Override
+            public String json(int i) {
+                return "{\"user\":\"bee" + i % USERS + "\",\"interval\":5000}";
+            }
+        });
+        final ChannelStats stats = new ChannelStats("presence");
+        assertWithinBudget("presence", PRESENCE_BUDGET, new Runnable() {
+            @Override
+            public void run() {
+                for (List<AnyJson> batch : batches) {
+                    mInbound.onPresenceData(batch, stats);
+                    // Users come and go between the roster deltas
+                    mRoster.expire(System.currentTimeMillis() + 16000);
+                    mRoster.takeDelta();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void countStaysWithinBudget() {
+        final List<List<AnyJson>> batches = batches(new Payload() {
+            @Override
+            public String json(int i) {
+                return "{\"count\":" + i % 1000 + "}";
+            }
+        });
+        assertWithinBudget("count", COUNT_BUDGET, new Runnable() {
+            @Override
+            public void run() {
+                for (List<AnyJson> batch : batches) {
+                    for (AnyJson json : batch) {
+                        json.convertToType(CountMessage.class);
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    public void tagsStayWithinBudget() {
+        final List<List<AnyJson>> batches = batches(new Payload() {
+            @Override
+            public String json(int i) {
+                return "{\"tag\":\"hive" + i % 50 + "\",\"lat\":37.77,\"lon\":-122.41}";
+            }
+        });
+        final TrendingTags trending = new TrendingTags(32, 10 * 60 * 1000);
+        assertWithinBudget("tags", TAG_BUDGET, new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (List<AnyJson> batch : batches) {
+                    for (AnyJson json : batch) {
+                        trending.offer(json.convertToType(ChatMessage.class).tag, now);
+                    }
+                }
+                trending.top(5, now);
+            }
+        });
+    }
+
+    // Runs the work once to load and compile the code, then measures a second run
+    private void assertWithinBudget(String channel, int budget, Runnable work) {
+        long thread = Thread.currentThread().getId();
+        work.run();
+        long start = mThreads.getThreadAllocatedBytes(thread);
+        work.run();
+        long perMessage = (mThreads.getThreadAllocatedBytes(thread) - start) / MESSAGES;
+        System.out.println(String.format(Locale.US, "%s: %d bytes/message, budget %d", channel, perMessage, budget));
+        assertTrue(channel + " allocates " + perMessage + " bytes per message, over its budget of " + budget,
+                perMessage <= budget);
+    }
+
+    private static List<List<AnyJson>> batches(Payload payload) {
+        List<List<AnyJson>> batches = new ArrayList<List<AnyJson>>();
+        for (int i = 0; i < MESSAGES; i += BATCH_SIZE) {
+            List<AnyJson> batch = new ArrayList<AnyJson>(BATCH_SIZE);
+            for (int j = i; j < Math.min(i + BATCH_SIZE, MESSAGES); j++) {
+                batch.add(new GsonJson(new JsonParser().parse(payload.json(j))));
+            }
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private interface Payload {
+        String json(int i);
+    }
+
+    /**
+     * A message as the SDK delivers it: parsed from the frame, converted to a type on demand.
+     */
+    private static class GsonJson implements AnyJson {
+        private static final Gson GSON = new Gson();
+        private final JsonElement mElement;
+
+        GsonJson(JsonElement element) {
+            this.mElement = element;
+        }
+
+        @Override
+        public <T> T convertToType(Class<T> type) {
+            return GSON.fromJson(mElement, type);
+        }
+
+        @Override
+        public String toString() {
+            return mElement.toString();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.satori.android_demo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TermIndexTest {
+    private static final String[] WORDS = {"buzz", "honey", "hive", "queen", "pollen", "flower", "nectar", "sting",
+            "wax", "drone", "worker", "swarm", "comb", "meadow", "clover", "lavender"};
+
+    @Test
+    public void tokenizeSplitsOnNonLetters() {
+        assertEquals(Arrays.asList("hello", "world", "42"), TermIndex.tokenize("Hello, WORLD!  42"));
+        assertEquals(Arrays.asList("don", "t"), TermIndex.tokenize("don't"));
+        assertEquals(Arrays.asList("café"), TermIndex.tokenize("  CafÉ "));
+        assertTrue(TermIndex.tokenize("🐝 🐝").isEmpty());
+        assertTrue(TermIndex.tokenize("").isEmpty());
+        assertTrue(TermIndex.tokenize(null).isEmpty());
+    }
+
+    @Test
+    public void postingListRoundTrip() {
+        // Gaps of one to four varint bytes, and the largest id
+        int[] ids = {0, 1, 2, 129, 130, 20000, 20001, 3000000, 400000000, Integer.MAX_VALUE};
+        TermIndex.PostingList postings = new TermIndex.PostingList();
+        BitSet expected = new BitSet();
+        for (int id : ids) {
+            postings.add(id);
+            // Repeated words of a message are posted once
+            assertEquals(0, postings.add(id));
+            expected.set(id);
+        }
+        BitSet docs = new BitSet();
+        postings.addTo(docs);
+        assertEquals(expected, docs);
+    }
+
+    @Test
+    public void postingListReportsGrowth() {
+        TermIndex.PostingList postings = new TermIndex.PostingList();
+        long grown = 0;
+        for (int id = 0; id < 1000; id++) {
+            grown += postings.add(id * 3);
+        }
+        // One byte per gap, the array doubling from 4 bytes
+        assertTrue(grown >= 1000 - 4 && grown < 2 * 1000);
+    }
+
+    @Test
+    public void findMatchesAllWordsAndLastAsPrefix() {
+        TermIndex index = new TermIndex();
+        index.add(0, "hiking", "Meet at the trail head");
+        index.add(1, "hiking", "The trail is closed");
+        index.add(2, "hiking", "Trailhead parking is full");
+        index.add(3, "biking", "trail closed too");
+
+        assertEquals(bits(0, 1, 2), index.find("hiking", "TRAIL"));
+        assertEquals(bits(1), index.find("hiking", "trail clo"));
+        assertEquals(bits(2), index.find("hiking", "parking trailh"));
+        assertEquals(bits(), index.find("hiking", "closed parking"));
+        assertEquals(bits(3), index.find("biking", "closed"));
+        assertEquals(bits(), index.find("lobby", "trail"));
+        assertEquals(bits(), index.find("hiking", "!?"));
+    }
+
+    @Test
+    public void hivesDifferingInCaseAreSeparate() {
+        TermIndex index = new TermIndex();
+        index.add(0, "Hiking", "trail one");
+        index.add(1, "hiking", "trail two");
+
+        assertEquals(bits(0), index.find("Hiking", "trail"));
+        assertEquals(bits(1), index.find("hiking", "trail"));
+        assertEquals(bits(), index.find("HIKING", "trail"));
+    }
+
+    @Test
+    public void retainFromDropsOlderMessagesAndRenumbers() {
+        TermIndex index = new TermIndex();
+        index.add(0, "hiking", "old trail");
+        index.add(1, "biking", "old road");
+        index.add(2, "hiking", "new trail");
+        index.add(300, "hiking", "newest trail");
+        long before = index.bytes();
+
+        index.retainFrom(2);
+        assertEquals(bits(0, 298), index.find("hiking", "trail"));
+        assertEquals(bits(), index.find("hiking", "old"));
+        assertEquals(bits(), index.find("biking", "road"));
+        assertTrue(index.bytes() < before);
+
+        // Numbering continues after the kept messages
+        index.add(299, "biking", "road again");
+        assertEquals(bits(299), index.find("biking", "road"));
+    }
+
+    @Test
+    public void postingListRetainFrom() {
+        TermIndex.PostingList postings = new TermIndex.PostingList();
+        BitSet expected = new BitSet();
+        for (int id = 0; id < 1000; id += 7) {
+            postings.add(id);
+            if (500 <= id) {
+                expected.set(id - 500);
+            }
+        }
+        BitSet docs = new BitSet();
+        postings.retainFrom(500).addTo(docs);
+        assertEquals(expected, docs);
+        assertEquals(null, postings.retainFrom(1000));
+    }
+
+    /**
+     * Indexes a busy history and times prefix queries over it. The bounds are loose so slow CI
+     * machines pass; the printed figures are the ones to compare between changes.
+     */
+    @Test
+    public void searchesLargeHistoryQuickly() {
+        int count = 120000;
+        Random random = new Random(1);
+        TermIndex index = new TermIndex();
+        long start = System.nanoTime();
+        for (int id = 0; id < count; id++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = random.nextInt(12); i >= 0; i--) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(100)).append(' ');
+            }
+            index.add(id, "hive" + random.nextInt(4), text.toString());
+        }
+        long indexNanos = System.nanoTime() - start;
+
+        int queries = 200;
+        int matched = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            String query = WORDS[random.nextInt(WORDS.length)] + random.nextInt(100) + " "
+                    + WORDS[random.nextInt(WORDS.length)].substring(0, 2);
+            matched += index.find("hive" + random.nextInt(4), query).cardinality();
+        }
+        long queryNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "%d messages: indexed in %d ms, %.2f ms/query, %d KB",
+                count, indexNanos / 1000000, queryNanos / 1e6 / queries, index.bytes() / 1024));
+        assertTrue(0 < matched);
+        assertTrue(indexNanos < 10000L * 1000000);
+        assertTrue(queryNanos / queries < 50L * 1000000);
+        assertTrue(index.bytes() < 8 * 1024 * 1024);
+    }
+
+    private static BitSet bits(int... ids) {
+        BitSet bits = new BitSet();
+        for (int id : ids) {
+            bits.set(id);
+        }
+        return bits;
+    }
+}
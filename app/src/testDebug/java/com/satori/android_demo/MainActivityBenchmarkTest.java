@@ -0,0 +1,111 @@
+package com.satori.android_demo;
+
+import android.content.ComponentName;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.view.View;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.util.Scheduler;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Main thread cost of the service's events in {@link MainActivity}, on the JVM, checked against a
+ * budget so UI regressions fail the build. The on-device counterpart is {@link UiBenchmark}.
+ * <p>
+ * A fake service binds the activity. The events of {@link UiLoad} are then sent to the
+ * activity's messenger at each of {@link UiLoad#RATES}, on a simulated clock, so every run sees
+ * the same load at the same times. The handler time of each event and of everything the events
+ * posted to the main thread is measured; saturation is that time over the simulated duration.
+ * Under Robolectric the renderer's thread runs what it is posted right away, so rendering the
+ * lines counts as handler time here, while on a device it runs in the background.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class MainActivityBenchmarkTest {
+    // Mean main thread time per event. 1 ms keeps the main thread below saturation at 1000/s.
+    private static final long EVENT_BUDGET_NANOS = 1000000;
+    private static final int STAGE_MS = 2000;
+    private static final int WARM_UP_RATE = 1000;
+
+    private Messenger mActivity;
+    private UiLoad mLoad;
+    private Scheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        Messenger service = new Messenger(new Handler() {
+            @Override
+            public void handleMessage(Message msg) {
+                if (SatoriService.EVENT_BIND_ACTIVITY == msg.what) {
+                    mActivity = msg.replyTo;
+                }
+            }
+        });
+        ShadowApplication.getInstance().setComponentNameAndServiceForBindService(
+                new ComponentName(RuntimeEnvironment.application, SatoriService.class), service.getBinder());
+        MainActivity activity = Robolectric.buildActivity(MainActivity.class).create().start().resume().visible().get();
+        mScheduler = Robolectric.getForegroundThreadScheduler();
+        mScheduler.advanceToLastPostedRunnable();
+        assertNotNull("The activity did not bind the service", mActivity);
+        // Robolectric does not lay out, the history renders for a phone sized screen
+        View root = activity.getWindow().getDecorView();
+        root.measure(View.MeasureSpec.makeMeasureSpec(480, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(800, View.MeasureSpec.EXACTLY));
+        root.layout(0, 0, 480, 800);
+        mLoad = new UiLoad();
+    }
+
+    @Test
+    public void eventsStayWithinBudget() throws RemoteException {
+        send(mLoad.rosterSnapshot());
+        run(WARM_UP_RATE);
+        for (int rate : UiLoad.RATES) {
+            long nanos = run(rate);
+            int events = rate * STAGE_MS / 1000;
+            long perEvent = nanos / events;
+            double saturation = (double) nanos / STAGE_MS / 1e6;
+            System.out.println(String.format(Locale.US, "%4d events/s: %d events, %.3f ms/event, main thread busy %.1f%%",
+                    rate, events, perEvent / 1e6, saturation * 100));
+            assertTrue(rate + " events/s take " + perEvent + " ns per event, over the budget of " + EVENT_BUDGET_NANOS,
+                    perEvent <= EVENT_BUDGET_NANOS);
+            assertTrue(rate + " events/s saturate the main thread", saturation < 1);
+        }
+    }
+
+    // Enters a new hive and sends the events of one stage, each at its time. Returns the main
+    // thread time spent on them.
+    private long run(int rate) throws RemoteException {
+        send(mLoad.enterHive("benchmark" + rate));
+        long stageStart = mScheduler.getCurrentTime();
+        long nanos = 0;
+        for (int i = 0; i < rate * STAGE_MS / 1000; i++) {
+            Message event = mLoad.next();
+            long start = System.nanoTime();
+            // Runs what the previous events posted for until now, then this event
+            mScheduler.advanceTo(stageStart + i * 1000L / rate);
+            send(event);
+            nanos += System.nanoTime() - start;
+        }
+        long start = System.nanoTime();
+        mScheduler.advanceTo(stageStart + STAGE_MS);
+        return nanos + System.nanoTime() - start;
+    }
+
+    private void send(Message event) throws RemoteException {
+        mActivity.send(event);
+    }
+}